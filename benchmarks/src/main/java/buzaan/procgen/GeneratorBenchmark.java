@@ -0,0 +1,57 @@
+package buzaan.procgen;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures generate() for every map generator across map sizes.
+ * Throughput mode gives maps per second and sample mode gives the latency
+ * percentiles. Run with the gc profiler for allocation rates and write the
+ * results as JSON so runs can be compared between commits:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc -rf json -rff results.json
+ * </pre>
+ *
+ * A subset can be picked with JMH's usual parameter overrides, e.g.
+ * {@code -p generator=ca,fractal -p size=64,1024}.
+ * @author buzaan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class GeneratorBenchmark {
+    // Fixed so every run measures the same maps.
+    private static final long SEED = 0x5eed;
+
+    @Param({"random", "ca", "bsp", "bilinear", "bicubic", "gradient", "fractal"})
+    public String generator;
+
+    @Param({"64", "256", "1024", "4096", "8192"})
+    public int size;
+
+    private IMapGenerator gen;
+
+    @Setup
+    public void setup() {
+        gen = Generators.create(generator, size, size);
+    }
+
+    @Benchmark
+    public Map generate() {
+        return gen.generate(SEED);
+    }
+}
@@ -0,0 +1,162 @@
+package buzaan.procgen;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Base for generators, drawing a seed for unseeded generation and running
+ * generation without a monitor.
+ *
+ * With a MapPool set, the maps a generator returns and any it needs along
+ * the way are taken from the pool instead of allocated. Scratch maps go back
+ * to the pool when generation is done; returned maps belong to the caller,
+ * who can give them back once finished with them.
+ * @author buzaan
+ */
+abstract class AbstractMapGenerator implements IMapGenerator {
+    private volatile MapPool pool;
+
+    @Override
+    public Map generate() {
+        return generate(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Override
+    public Map generate(long seed) {
+        return generate(seed, GenerationMonitor.NONE);
+    }
+
+    /**
+     * Generates into a copy and copies it into dest, for generators that
+     * can't write into a given map directly.
+     */
+    @Override
+    public Map generate(long seed, Map dest, GenerationMonitor monitor) {
+        Map out = generate(seed, monitor);
+        try {
+            checkDest(dest, out.getWidth(), out.getHeight());
+            Map.copy(out, dest);
+        } finally {
+            give(out);
+        }
+        return dest;
+    }
+
+    /**
+     * Null stops pooling.
+     */
+    public void setMapPool(MapPool pool) {
+        this.pool = pool;
+    }
+
+    public MapPool getMapPool() {
+        return pool;
+    }
+
+    protected BitMap takeBitMap(int width, int height) {
+        MapPool p = pool;
+        return p != null
+                ? p.takeBitMap(width, height)
+                : new BitMap(width, height);
+    }
+
+    protected RgbMap takeRgbMap(int width, int height) {
+        MapPool p = pool;
+        return p != null
+                ? p.takeRgbMap(width, height)
+                : new RgbMap(width, height);
+    }
+
+    /**
+     * Returns a scratch map to the pool, if there is one.
+     */
+    protected void give(Map m) {
+        MapPool p = pool;
+        if(p != null) {
+            p.give(m);
+        }
+    }
+
+    protected static void checkDest(Map dest, int width, int height) {
+        if(dest.getWidth() != width || dest.getHeight() != height) {
+            throw new IllegalArgumentException("Expected a " + width + "x"
+                    + height + " map, not " + dest.getWidth() + "x"
+                    + dest.getHeight() + ".");
+        }
+    }
+
+    /**
+     * @return a monitor passing checkpoints on to monitor with progress
+     * scaled into [from, to], for generators built on other generators.
+     */
+    static GenerationMonitor part(final GenerationMonitor monitor,
+            final double from, final double to) {
+        if(monitor == GenerationMonitor.NONE) {
+            return monitor;
+        }
+        return new GenerationMonitor() {
+            @Override
+            public void checkpoint(double done) {
+                monitor.checkpoint(from + done * (to - from));
+            }
+        };
+    }
+
+    /**
+     * The heights of a map a band of rows at a time, for stream().
+     */
+    interface Bands {
+        /**
+         * @return the heights of rows [y, y + rows), with row y as row 0.
+         */
+        HeightField.Functor open(int y, int rows);
+
+        /**
+         * Called once the heights from open() are no longer used.
+         */
+        void close(HeightField.Functor band);
+    }
+
+    /**
+     * Streams a width by height terrain map into sink, greyscale like
+     * generate(). Each band is filled in parallel and then handed over.
+     */
+    static void stream(final int width, int height, int bandRows, Bands bands,
+            IStreamGenerator.RowSink sink, GenerationMonitor monitor)
+            throws IOException {
+        if(bandRows <= 0) {
+            throw new IllegalArgumentException("Bands must have rows.");
+        }
+        bandRows = Math.min(bandRows, height);
+        if((long)width * bandRows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bands are too large.");
+        }
+        final int[] tiles = new int[width * bandRows];
+        for(int y = 0; y < height; y += bandRows) {
+            monitor.checkpoint((double)y / height);
+            int rows = Math.min(bandRows, height - y);
+            HeightField.Functor band = bands.open(y, rows);
+            try {
+                final HeightField.Functor f = band;
+                RowBands.run(rows, ForkJoinPool.commonPool(),
+                        new RowBands.Band() {
+                    @Override
+                    public void rows(int y1, int y2) {
+                        float[] heights = new float[width];
+                        int[] row = new int[width];
+                        for(int r = y1; r < y2; r++) {
+                            f.row(r, heights);
+                            HeightField.color(heights, row, width,
+                                    HeightField.GREYSCALE);
+                            System.arraycopy(row, 0, tiles, r * width, width);
+                        }
+                    }
+                });
+            } finally {
+                bands.close(band);
+            }
+            sink.rows(y, rows, tiles);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package buzaan.procgen;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Generates a batch of maps from the command line, without JavaFX.
+ * One map is generated for each seed in a range, on a pool of worker
+ * threads, and each is written to its own file as soon as it is done,
+ * either as a PNG or in the MapFile format.
+ * Only a bounded number of maps are queued or being generated at once, so
+ * memory use does not grow with the size of the batch. Terrain written to
+ * map files is streamed a band of rows at a time, so those maps may be larger
+ * than memory. The path of every file written is printed on standard output.
+ *
+ * <pre>
+ * java -cp procgen.jar buzaan.procgen.BatchGenerator \
+ *     --generator ca --size 512x512 --seeds 0..999 --threads 8 --out maps \
+ *     --format map
+ * </pre>
+ * @author buzaan
+ */
+public class BatchGenerator {
+    // Rows generated at once when streaming terrain to map files.
+    private static final int BAND_ROWS = 64;
+
+    private final IMapGenerator generator;
+    private final String name;
+    private final String config;
+    private final int width;
+    private final int height;
+    private final File outDir;
+    private final boolean png;
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param png whether to write PNGs rather than map files.
+     */
+    BatchGenerator(String name, int width, int height, File outDir,
+            boolean png) {
+        this.generator = Generators.create(name, width, height);
+        this.name = name;
+        this.config = name + " " + width + "x" + height;
+        this.width = width;
+        this.height = height;
+        this.outDir = outDir;
+        this.png = png;
+    }
+
+    /**
+     * Generates a map for every seed in [first, last] on threads threads,
+     * with at most inFlight maps queued or in progress.
+     */
+    void run(long first, long last, int threads, int inFlight)
+            throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final Semaphore slots = new Semaphore(inFlight);
+        try {
+            for(long s = first; s <= last && s >= first; s++) {
+                final long seed = s;
+                slots.acquire();
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            generate(seed);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private void generate(long seed) {
+        File file = new File(outDir,
+                name + "-" + seed + (png ? ".png" : ".map"));
+        try {
+            if(!png && generator instanceof IStreamGenerator) {
+                // Terrain goes straight to disk without a whole map.
+                MapFile.write(file, (IStreamGenerator)generator, width,
+                        height, BAND_ROWS, config, seed,
+                        GenerationMonitor.NONE);
+            } else {
+                Map map = generator.generate(seed);
+                if(png) {
+                    writePng(map, file);
+                } else {
+                    MapFile.write(file, map, config, seed);
+                }
+            }
+            written.incrementAndGet();
+            System.out.println(file.getPath());
+        } catch(IOException | RuntimeException ex) {
+            failed.incrementAndGet();
+            System.err.println("Seed " + seed + " failed: " + ex);
+        }
+    }
+
+    private static void writePng(Map map, File file) throws IOException {
+        int width = map.getWidth();
+        int height = map.getHeight();
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++) {
+            map.getRow(y, row);
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        if(!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer available.");
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: BatchGenerator --generator NAME"
+                + " [--size WxH] [--seeds FIRST..LAST] [--threads N]"
+                + " [--in-flight N] [--out DIR] [--format png|map]");
+        StringBuilder names = new StringBuilder("Generators:");
+        for(String n : Generators.NAMES) {
+            names.append(' ').append(n);
+        }
+        System.err.println(names);
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String name = null;
+        int width = 64;
+        int height = 64;
+        long first = 0;
+        long last = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int inFlight = -1;
+        File out = new File(".");
+        String format = "png";
+
+        try {
+            for(int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if(i + 1 >= args.length) {
+                    usage("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch(arg) {
+                    case "--generator":
+                        name = value;
+                        break;
+                    case "--size": {
+                        int x = value.indexOf('x');
+                        if(x < 0) {
+                            usage("Size must be WIDTHxHEIGHT: " + value);
+                        }
+                        width = Integer.parseInt(value.substring(0, x));
+                        height = Integer.parseInt(value.substring(x + 1));
+                        break;
+                    }
+                    case "--seeds": {
+                        int dots = value.indexOf("..");
+                        if(dots < 0) {
+                            first = last = Long.parseLong(value);
+                        } else {
+                            first = Long.parseLong(value.substring(0, dots));
+                            last = Long.parseLong(value.substring(dots + 2));
+                        }
+                        break;
+                    }
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--in-flight":
+                        inFlight = Integer.parseInt(value);
+                        break;
+                    case "--out":
+                        out = new File(value);
+                        break;
+                    case "--format":
+                        format = value;
+                        break;
+                    default:
+                        usage("Unknown option: " + arg);
+                }
+            }
+        } catch(NumberFormatException ex) {
+            usage("Bad number: " + ex.getMessage());
+        }
+        if(name == null) {
+            usage("No generator given.");
+        }
+        if(width <= 0 || height <= 0 || threads <= 0 || first > last) {
+            usage("Size, threads and seed range must be positive.");
+        }
+        if(!format.equals("png") && !format.equals("map")) {
+            usage("Unknown format: " + format);
+        }
+        if(inFlight <= 0) {
+            inFlight = 2 * threads;
+        }
+        if(!out.isDirectory() && !out.mkdirs()) {
+            usage("Cannot create output directory " + out);
+        }
+
+        BatchGenerator batch;
+        try {
+            batch = new BatchGenerator(name, width, height, out,
+                    format.equals("png"));
+        } catch(IllegalArgumentException ex) {
+            usage(ex.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        batch.run(first, last, threads, inFlight);
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.err.println("Wrote " + batch.written + " maps in " + ms
+                + " ms, " + batch.failed + " failed.");
+        System.exit(batch.failed.get() == 0 ? 0 : 1);
+    }
+}
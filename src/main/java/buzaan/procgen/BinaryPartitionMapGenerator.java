@@ -1,6 +1,9 @@
 package buzaan.procgen;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Generates a map by recursively subdividing  the space.
@@ -11,36 +14,208 @@ import java.util.Random;
  * Tweaking the way it divides the space (currently is splits it right down the
  * middle), the shape of the room generated, and the way hallways are created
  * could make for more interesting maps.
+ *
+ * Sibling partitions are generated in parallel with fork/join. Each partition
+ * draws from its own seed, derived from its parent's, so the map depends only
+ * on the seed and not on how the work was split between threads. Rooms and
+ * halls are laid out as rectangles first, giving a DungeonLayout that can
+ * be used without drawing it into a map at all.
  * @author buzaan
  */
-public class BinaryPartitionMapGenerator implements IMapGenerator {
+public class BinaryPartitionMapGenerator extends AbstractMapGenerator {
 
     private final int mapWidth;
     private final int mapHeight;
     private final int MIN_PARTITION_SIZE = 20;
     private final int MIN_ROOM_SIZE = 4;
     private final int PADDING = 2;
-    private final Random rnd = new Random();
+    // Subtrees with fewer rooms than this are generated on the current thread.
+    private static final int FORK_ROOMS = 32;
+    // Hall segments dug by a single join.
+    private static final int JOIN_SEGMENTS = 5;
 
     BinaryPartitionMapGenerator(int width, int height) {
         mapWidth = width;
         mapHeight = height;
-        rnd.setSeed(0);
     }
 
-    private int nextIntBetween(int min, int max) {
+    /**
+     * Rooms, hall segments and partitions as inclusive rectangles, four ints
+     * each, in the order DungeonLayout keeps them. Room i is the i-th leaf
+     * from the left and join i is the one between rooms i and i + 1, so every
+     * partition knows where its entries go before any are generated and
+     * parallel partitions never write the same slots. Each join has room for
+     * all the segments it might dig; unused ones are left with x1 greater than
+     * x2.
+     */
+    private static final class Layout {
+        private final int[] rooms;
+        private final int[] halls;
+        private final int[] nodes;
+        private final GenerationMonitor monitor;
+        private final double roomCount;
+        private final AtomicInteger placed = new AtomicInteger();
+
+        Layout(int roomCount, GenerationMonitor monitor) {
+            rooms = new int[4 * roomCount];
+            halls = new int[4 * JOIN_SEGMENTS * Math.max(0, roomCount - 1)];
+            nodes = new int[4 * (2 * roomCount - 1)];
+            this.monitor = monitor;
+            this.roomCount = roomCount;
+        }
+
+        void checkpoint() {
+            monitor.checkpoint(placed.get() / roomCount);
+        }
+
+        void node(int node, int x, int y, int w, int h) {
+            int i = 4 * node;
+            nodes[i] = x;
+            nodes[i + 1] = y;
+            nodes[i + 2] = x + w - 1;
+            nodes[i + 3] = y + h - 1;
+        }
+
+        void hall(int join, int segment, int x1, int y1, int x2, int y2) {
+            int i = 4 * (join * JOIN_SEGMENTS + segment);
+            halls[i] = x1;
+            halls[i + 1] = y1;
+            halls[i + 2] = x2;
+            halls[i + 3] = y2;
+        }
+
+        /**
+         * @return the largest x no greater than max where row y is open
+         * within rooms [r0, r0 + n) and the joins between them, or
+         * Integer.MIN_VALUE if there is none.
+         */
+        int lastOpenX(int r0, int n, int y, int max) {
+            int best = Integer.MIN_VALUE;
+            best = Math.max(best, lastOpen(rooms, r0, r0 + n, 0, y, max));
+            return Math.max(best, lastOpen(halls, r0 * JOIN_SEGMENTS,
+                    (r0 + n - 1) * JOIN_SEGMENTS, 0, y, max));
+        }
+
+        /**
+         * As lastOpenX() but for the smallest x no less than min.
+         */
+        int firstOpenX(int r0, int n, int y, int min) {
+            int best = Integer.MAX_VALUE;
+            best = Math.min(best, firstOpen(rooms, r0, r0 + n, 0, y, min));
+            return Math.min(best, firstOpen(halls, r0 * JOIN_SEGMENTS,
+                    (r0 + n - 1) * JOIN_SEGMENTS, 0, y, min));
+        }
+
+        int lastOpenY(int r0, int n, int x, int max) {
+            int best = Integer.MIN_VALUE;
+            best = Math.max(best, lastOpen(rooms, r0, r0 + n, 1, x, max));
+            return Math.max(best, lastOpen(halls, r0 * JOIN_SEGMENTS,
+                    (r0 + n - 1) * JOIN_SEGMENTS, 1, x, max));
+        }
+
+        int firstOpenY(int r0, int n, int x, int min) {
+            int best = Integer.MAX_VALUE;
+            best = Math.min(best, firstOpen(rooms, r0, r0 + n, 1, x, min));
+            return Math.min(best, firstOpen(halls, r0 * JOIN_SEGMENTS,
+                    (r0 + n - 1) * JOIN_SEGMENTS, 1, x, min));
+        }
+
+        /**
+         * Searches rects [from, to) of a along axis (0 for x, 1 for y) for
+         * the last open position no greater than max on the line at across
+         * on the other axis.
+         */
+        private static int lastOpen(int[] a, int from, int to, int axis,
+                int across, int max) {
+            int best = Integer.MIN_VALUE;
+            for(int i = 4 * from; i < 4 * to; i += 4) {
+                int lo = a[i + axis];
+                int hi = a[i + 2 + axis];
+                int c1 = a[i + 1 - axis];
+                int c2 = a[i + 3 - axis];
+                if(lo <= hi && c1 <= across && across <= c2 && lo <= max) {
+                    best = Math.max(best, Math.min(hi, max));
+                }
+            }
+            return best;
+        }
+
+        private static int firstOpen(int[] a, int from, int to, int axis,
+                int across, int min) {
+            int best = Integer.MAX_VALUE;
+            for(int i = 4 * from; i < 4 * to; i += 4) {
+                int lo = a[i + axis];
+                int hi = a[i + 2 + axis];
+                int c1 = a[i + 1 - axis];
+                int c2 = a[i + 3 - axis];
+                if(lo <= hi && c1 <= across && across <= c2 && hi >= min) {
+                    best = Math.min(best, Math.max(lo, min));
+                }
+            }
+            return best;
+        }
+
+        /**
+         * @return the finished layout, without the unused hall segments.
+         */
+        DungeonLayout build(int width, int height) {
+            int joins = halls.length / (4 * JOIN_SEGMENTS);
+            int[] start = new int[joins + 1];
+            int used = 0;
+            for(int i = 0; i < halls.length; i += 4) {
+                if(halls[i] <= halls[i + 2]) {
+                    used++;
+                }
+            }
+            int[] corridors = new int[4 * used];
+            int n = 0;
+            for(int j = 0; j < joins; j++) {
+                start[j] = n;
+                for(int k = 0; k < JOIN_SEGMENTS; k++) {
+                    int i = 4 * (j * JOIN_SEGMENTS + k);
+                    if(halls[i] <= halls[i + 2]) {
+                        System.arraycopy(halls, i, corridors, 4 * n, 4);
+                        n++;
+                    }
+                }
+            }
+            start[joins] = n;
+            return new DungeonLayout(width, height, rooms, nodes,
+                    corridors, start);
+        }
+    }
+
+    /**
+     * @return number of rooms partition() places in a w by h area. Both
+     * halves of a split are the same size, and which way a square is split
+     * does not change the count, so it is known before generating.
+     */
+    private int countRooms(int w, int h) {
+        if (w < MIN_PARTITION_SIZE || h < MIN_PARTITION_SIZE) {
+            return 1;
+        }
+        return w >= h ? 2 * countRooms(w / 2, h) : 2 * countRooms(w, h / 2);
+    }
+
+    private static int nextIntBetween(SplittableRandom rnd, int min, int max) {
         return rnd.nextInt(max - min) + min;
     }
 
     /**
      * @returns bounds of room generated.
      */
-    private Rect genRoom(Map m, int x1, int y1, int x2, int y2) {
-        int w = nextIntBetween(MIN_ROOM_SIZE, x2 - x1);
-        int h = nextIntBetween(MIN_ROOM_SIZE, y2 - y1);
-        int x = nextIntBetween(x1, x2 - w);
-        int y = nextIntBetween(y1, y2 - h);
-        m.fillRegion(x, y, w, h, Map.SPACE);
+    private Rect genRoom(long seed, Layout layout, int room,
+            int x1, int y1, int x2, int y2) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int w = nextIntBetween(rnd, MIN_ROOM_SIZE, x2 - x1);
+        int h = nextIntBetween(rnd, MIN_ROOM_SIZE, y2 - y1);
+        int x = nextIntBetween(rnd, x1, x2 - w);
+        int y = nextIntBetween(rnd, y1, y2 - h);
+        int i = 4 * room;
+        layout.rooms[i] = x;
+        layout.rooms[i + 1] = y;
+        layout.rooms[i + 2] = x + w;
+        layout.rooms[i + 3] = y + h;
         return new Rect(x, y, x + w, y + h);
     }
 
@@ -49,100 +224,167 @@ public class BinaryPartitionMapGenerator implements IMapGenerator {
      * left segment and digs a hallway until it reaches an empty spot in the
      * right.
      *
+     * The left segment holds rooms [r0, r0 + n) and the right the n after.
+     * Digging only looks at those rooms and the halls between them, which is
+     * all that can be open in either segment.
+     *
      * @return Bounds of the joined segments.
      */
-    private Rect joinV(Map m, Rect left, Rect right) {
+    private Rect joinV(Layout layout, int r0, int n, Rect left, Rect right) {
+        int join = r0 + n - 1;
         int midX = (left.x2 + right.x1) / 2;
         int leftY = (left.y2 + left.y1) / 2;
         int rightY = (right.y2 + right.y1) / 2;
 
         // Dig out a hall from the left...
-        for (int x = left.x2 + 1; x <= midX; x++) {
-            m.setTile(x, leftY, Map.SPACE);
-        }
-
-        for (int x = left.x2; x > 0 && m.getTile(x, leftY) == Map.WALL; x--) {
-            m.setTile(x, leftY, Map.SPACE);
-        }
+        layout.hall(join, 0, left.x2 + 1, leftY, midX, leftY);
+        int open = Math.max(0, layout.lastOpenX(r0, n, leftY, left.x2));
+        layout.hall(join, 1, open + 1, leftY, left.x2, leftY);
 
         // ... and right...
-        for (int x = right.x1 - 1; x >= midX; x--) {
-            m.setTile(x, rightY, Map.SPACE);
-        }
-        for (int x = right.x1; x < m.getWidth() && m.getTile(x, rightY) == Map.WALL; x++) {
-            m.setTile(x, rightY, Map.SPACE);
-        }
+        layout.hall(join, 2, midX, rightY, right.x1 - 1, rightY);
+        open = Math.min(mapWidth,
+                layout.firstOpenX(r0 + n, n, rightY, right.x1));
+        layout.hall(join, 3, right.x1, rightY, open - 1, rightY);
 
         if(leftY != rightY) {
             // ... and then connect the two.
-            int dir = leftY < rightY ? 1 : -1;
-            for(int y = leftY; y != rightY + dir; y += dir) {
-                m.setTile(midX, y, Map.SPACE);
-            }
+            layout.hall(join, 4, midX, Math.min(leftY, rightY),
+                    midX, Math.max(leftY, rightY));
+        } else {
+            layout.hall(join, 4, 1, 0, 0, 0);
         }
         return Rect.enclosing(left, right);
     }
 
-    private Rect joinH(Map m, Rect top, Rect bot) {
+    private Rect joinH(Layout layout, int r0, int n, Rect top, Rect bot) {
+        int join = r0 + n - 1;
         int midY = (top.y2 + bot.y1) / 2;
         int topX = (top.x1 + top.x2) / 2;
         int botX = (bot.x1 + bot.x2) / 2;
 
-        for(int y = top.y2 + 1; y <= midY; y++) {
-            m.setTile(topX, y, Map.SPACE);
-        }
-        for(int y = top.y2; y > 0 && m.getTile(topX, y) == Map.WALL; y--) {
-            m.setTile(topX, y, Map.SPACE);
-        }
+        layout.hall(join, 0, topX, top.y2 + 1, topX, midY);
+        int open = Math.max(0, layout.lastOpenY(r0, n, topX, top.y2));
+        layout.hall(join, 1, topX, open + 1, topX, top.y2);
 
-        for(int y = bot.y1 - 1; y >= midY; y--) {
-            m.setTile(botX, y, Map.SPACE);
-        }
-        for(int y = bot.y1; y < m.getHeight() &&  m.getTile(botX, y) == Map.WALL; y++) {
-            m.setTile(botX, y, Map.SPACE);
-        }
+        layout.hall(join, 2, botX, midY, botX, bot.y1 - 1);
+        open = Math.min(mapHeight,
+                layout.firstOpenY(r0 + n, n, botX, bot.y1));
+        layout.hall(join, 3, botX, bot.y1, botX, open - 1);
 
         if(topX != botX) {
-            int dir = topX < botX ? 1 : -1;
-            for(int x = topX; x != botX + dir; x += dir) {
-                m.setTile(x, midY, Map.SPACE);
-            }
+            layout.hall(join, 4, Math.min(topX, botX), midY,
+                    Math.max(topX, botX), midY);
+        } else {
+            layout.hall(join, 4, 1, 0, 0, 0);
         }
         return Rect.enclosing(top, bot);
     }
 
     /**
-     * @returns bounds of valid area in each partition.
+     * Lays out the n rooms of a partition, starting at room r0.
      */
-    private Rect partition(Map m, int x, int y, int w, int h) {
-        if (w < MIN_PARTITION_SIZE || h < MIN_PARTITION_SIZE) {
-            return genRoom(m,
-                    x + PADDING,
-                    y + PADDING,
-                    x + w - PADDING,
-                    y + h - PADDING);
-        } else {
-            boolean splitVert = w == h ? rnd.nextBoolean() : w > h;
+    private final class Partition extends RecursiveTask<Rect> {
+        private static final long serialVersionUID = 1L;
+
+        private final Layout layout;
+        private final long seed;
+        private final int r0;
+        private final int n;
+        private final int x;
+        private final int y;
+        private final int w;
+        private final int h;
+
+        Partition(Layout layout, long seed, int r0, int n,
+                int x, int y, int w, int h) {
+            this.layout = layout;
+            this.seed = seed;
+            this.r0 = r0;
+            this.n = n;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        @Override
+        protected Rect compute() {
+            layout.checkpoint();
+            layout.node(n == 1 ? 2 * r0 : 2 * (r0 + n / 2) - 1, x, y, w, h);
+            if (n == 1) {
+                layout.placed.incrementAndGet();
+                return genRoom(seed, layout, r0,
+                        x + PADDING,
+                        y + PADDING,
+                        x + w - PADDING,
+                        y + h - PADDING);
+            }
+            boolean splitVert = w == h ? SeedHash.mix(seed) < 0 : w > h;
+            long leftSeed = SeedHash.derive(seed, 1);
+            long rightSeed = SeedHash.derive(seed, 2);
+            int half = n / 2;
+            Partition first;
+            Partition second;
             if (splitVert) {
                 // Partition vertically
                 int halfw = w / 2;
-                Rect left = partition(m, x, y, halfw, h);
-                Rect right = partition(m, x + halfw, y, halfw, h);
-                return joinV(m, left, right);
+                first = new Partition(layout, leftSeed, r0, half,
+                        x, y, halfw, h);
+                second = new Partition(layout, rightSeed, r0 + half, half,
+                        x + halfw, y, halfw, h);
             } else {
                 // ... horizontally
                 int halfh = h / 2;
-                Rect top = partition(m, x, y, w, halfh);
-                Rect bot = partition(m, x, y + halfh, w, halfh);
-                return joinH(m, top, bot);
+                first = new Partition(layout, leftSeed, r0, half,
+                        x, y, w, halfh);
+                second = new Partition(layout, rightSeed, r0 + half, half,
+                        x, y + halfh, w, halfh);
+            }
+            Rect a;
+            Rect b;
+            if (n >= FORK_ROOMS) {
+                second.fork();
+                a = first.compute();
+                b = second.join();
+            } else {
+                a = first.compute();
+                b = second.compute();
             }
+            return splitVert
+                    ? joinV(layout, r0, half, a, b)
+                    : joinH(layout, r0, half, a, b);
         }
     }
 
+    /**
+     * Lays out the dungeon for seed without drawing it.
+     */
+    public DungeonLayout layout(long seed) {
+        return layout(seed, GenerationMonitor.NONE);
+    }
+
+    public DungeonLayout layout(long seed, GenerationMonitor monitor) {
+        int w = mapWidth - 1;
+        int h = mapHeight - 1;
+        int rooms = countRooms(w, h);
+        Layout layout = new Layout(rooms, monitor);
+        ForkJoinPool.commonPool().invoke(
+                new Partition(layout, seed, 0, rooms, 1, 1, w, h));
+        return layout.build(mapWidth, mapHeight);
+    }
+
+    @Override
+    public Map generate(long seed, GenerationMonitor monitor) {
+        return generate(seed, takeBitMap(mapWidth, mapHeight), monitor);
+    }
+
     @Override
-    public Map generate() {
-        Map map = new Map(mapWidth, mapHeight);
-        partition(map, 1, 1, map.getWidth() - 1, map.getHeight() - 1);
-        return map;
+    public Map generate(long seed, Map dest, GenerationMonitor monitor) {
+        checkDest(dest, mapWidth, mapHeight);
+        DungeonLayout layout = layout(seed, monitor);
+        dest.fillRegion(0, 0, mapWidth - 1, mapHeight - 1, Map.WALL);
+        layout.draw(dest);
+        return dest;
     }
 }
@@ -0,0 +1,378 @@
+package buzaan.procgen;
+
+import java.util.Arrays;
+
+/**
+ * Steps a CaRule of radius 1 over a binary map 64 tiles at a time.
+ * By default this is the cave rule: a tile becomes WALL when at least 5 of
+ * its 8 neighbours are walls and SPACE otherwise. The neighbour counts for a
+ * whole word are built with a bitwise adder network, so each bit of the
+ * intermediate words is one tile's count, and the rule picks the lanes that
+ * become walls from the count bits.
+ *
+ * Two buffers are kept and swapped after each generation, either BitMaps or
+ * binary OffHeapMaps. BitMaps are stepped straight through their words;
+ * OffHeapMaps a row at a time through a window of three rows, so only a few
+ * rows are ever on the heap. As with the original per-tile rule, border
+ * tiles are left as WALL.
+ *
+ * Caves settle after a few generations, so the words that changed in each
+ * step are remembered, a bit per word. When the same rule is stepped again,
+ * only words next to a change are recomputed and the rest are carried over;
+ * rows with no change nearby are copied whole. Once a step changes nothing
+ * the map is at a fixed point of the rule. Neither buffer may be written to
+ * between steps.
+ * @author buzaan
+ */
+class BitAutomaton {
+    private Map front;
+    private Map back;
+    private final int wordsPerRow;
+    private final int height;
+    // Bits of the first and last word in each row that belong to the interior.
+    private final long firstMask;
+    private final long lastMask;
+    // Words, and rows, that changed in the last step, and for the next one.
+    // Word k of row y is bit k % 64 of set y * setsPerRow + k / 64.
+    private final int setsPerRow;
+    private long[] changed;
+    private boolean[] rowChanged;
+    private long[] nextChanged;
+    private boolean[] nextRowChanged;
+    // Words of a row with a change in the row or the rows either side.
+    private final boolean[] near;
+    // For OffHeapMaps, rows y - 1, y and y + 1, row r in slot r % 3, and the
+    // next generation of row y.
+    private final long[] window;
+    private final long[] out;
+    // Rule of the last step, or null if it can't be built on.
+    private CaRule lastRule;
+    private boolean stable = false;
+
+    /**
+     * @param initial generation 0, which becomes one of the two buffers.
+     * @param scratch a map with the same dimensions used as the other buffer.
+     */
+    BitAutomaton(Map initial, Map scratch) {
+        if(!canStep(initial, scratch)) {
+            throw new IllegalArgumentException("Only two BitMaps or two"
+                    + " binary OffHeapMaps can be stepped.");
+        }
+        front = initial;
+        back = scratch;
+        int width = initial.getWidth();
+        wordsPerRow = (width + 63) >>> 6;
+        height = initial.getHeight();
+        // The last tile in the row is border, not interior.
+        int lastBits = width - 1 - (wordsPerRow - 1) * 64;
+        long last = lastBits == 0 ? 0L : -1L >>> (64 - lastBits);
+        if(width < 3) {
+            // No interior at all.
+            firstMask = 0L;
+            lastMask = 0L;
+        } else if(wordsPerRow == 1) {
+            firstMask = last & ~1L;
+            lastMask = firstMask;
+        } else {
+            firstMask = ~1L;
+            lastMask = last;
+        }
+        setsPerRow = (wordsPerRow + 63) >>> 6;
+        if((long)setsPerRow * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Map is too large to step.");
+        }
+        int sets = setsPerRow * height;
+        changed = new long[sets];
+        rowChanged = new boolean[height];
+        nextChanged = new long[sets];
+        nextRowChanged = new boolean[height];
+        near = new boolean[wordsPerRow];
+        if(initial instanceof OffHeapMap) {
+            window = new long[3 * wordsPerRow];
+            out = new long[wordsPerRow];
+        } else {
+            window = null;
+            out = null;
+        }
+    }
+
+    /**
+     * @return whether a and b can be stepped, as two BitMaps or two binary
+     * OffHeapMaps.
+     */
+    static boolean canStep(Map a, Map b) {
+        if(a instanceof BitMap && b instanceof BitMap) {
+            return true;
+        }
+        return a instanceof OffHeapMap && ((OffHeapMap)a).isBinary()
+                && b instanceof OffHeapMap && ((OffHeapMap)b).isBinary();
+    }
+
+    /**
+     * @return the buffer holding the latest generation.
+     */
+    Map current() {
+        return front;
+    }
+
+    /**
+     * @return whether the last step left the map as it was.
+     */
+    boolean isStable() {
+        return stable;
+    }
+
+    void step() {
+        step(CaRule.CAVE);
+    }
+
+    /**
+     * Steps rule once. Rules of other radii are stepped through CaRule, and
+     * the next step starts afresh.
+     */
+    void step(CaRule rule) {
+        if(rule.getRadius() != 1) {
+            rule.step(front, back);
+            stable = sameWords();
+            lastRule = null;
+            swap();
+            return;
+        }
+        boolean incremental = rule.equals(lastRule);
+        boolean any = front instanceof BitMap
+                ? stepWords(rule, incremental)
+                : stepRows(rule, incremental);
+        stable = !any;
+        lastRule = rule;
+        long[] t = changed;
+        changed = nextChanged;
+        nextChanged = t;
+        boolean[] r = rowChanged;
+        rowChanged = nextRowChanged;
+        nextRowChanged = r;
+        swap();
+    }
+
+    /**
+     * Steps BitMaps in their word arrays.
+     * @return whether any word changed.
+     */
+    private boolean stepWords(CaRule rule, boolean incremental) {
+        long[] src = ((BitMap)front).words();
+        long[] dst = ((BitMap)back).words();
+        int n = wordsPerRow;
+        // Top and bottom rows are always wall.
+        boolean any = clearRow(src, 0, 0);
+        Arrays.fill(dst, 0, n, 0L);
+        if(height > 1) {
+            int bottom = (height - 1) * n;
+            any |= clearRow(src, bottom, height - 1);
+            Arrays.fill(dst, bottom, bottom + n, 0L);
+        }
+        for(int y = 1; y < height - 1; y++) {
+            if(incremental && quiet(y)) {
+                System.arraycopy(src, y * n, dst, y * n, n);
+                keep(y);
+            } else {
+                nextRowChanged[y] = stepRow(rule, src, (y - 1) * n, y * n,
+                        (y + 1) * n, dst, y * n, y, incremental);
+                any |= nextRowChanged[y];
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Steps OffHeapMaps a row at a time through the window.
+     * @return whether any word changed.
+     */
+    private boolean stepRows(CaRule rule, boolean incremental) {
+        OffHeapMap src = (OffHeapMap)front;
+        OffHeapMap dst = (OffHeapMap)back;
+        int n = wordsPerRow;
+        boolean any = clearRow(src, dst, 0);
+        if(height > 1) {
+            any |= clearRow(src, dst, height - 1);
+        }
+        if(height > 2) {
+            src.getWords(0, window, 0);
+            src.getWords(1, window, n);
+        }
+        for(int y = 1; y < height - 1; y++) {
+            src.getWords(y + 1, window, (y + 1) % 3 * n);
+            int mid = y % 3 * n;
+            if(incremental && quiet(y)) {
+                dst.setWords(y, window, mid);
+                keep(y);
+            } else {
+                nextRowChanged[y] = stepRow(rule, window, (y - 1) % 3 * n,
+                        mid, (y + 1) % 3 * n, out, 0, y, incremental);
+                dst.setWords(y, out, 0);
+                any |= nextRowChanged[y];
+            }
+        }
+        return any;
+    }
+
+    /**
+     * @return whether nothing changed in the last step near row y.
+     */
+    private boolean quiet(int y) {
+        return !rowChanged[y - 1] && !rowChanged[y] && !rowChanged[y + 1];
+    }
+
+    /**
+     * Notes that row y is carried over unchanged.
+     */
+    private void keep(int y) {
+        Arrays.fill(nextChanged, y * setsPerRow, (y + 1) * setsPerRow, 0L);
+        nextRowChanged[y] = false;
+    }
+
+    /**
+     * Notes the words of row y, at offset in src, that change when the row
+     * is walled off.
+     * @return whether it had any space.
+     */
+    private boolean clearRow(long[] src, int offset, int y) {
+        int set = y * setsPerRow;
+        long bits = 0L;
+        boolean any = false;
+        for(int k = 0; k < wordsPerRow; k++) {
+            bits |= src[offset + k] != 0L ? 1L << k : 0L;
+            if((k & 63) == 63 || k == wordsPerRow - 1) {
+                nextChanged[set + (k >>> 6)] = bits;
+                any |= bits != 0L;
+                bits = 0L;
+            }
+        }
+        nextRowChanged[y] = any;
+        return any;
+    }
+
+    /**
+     * Walls off row y of dst.
+     * @return whether src had any space in it.
+     */
+    private boolean clearRow(OffHeapMap src, OffHeapMap dst, int y) {
+        src.getWords(y, out, 0);
+        boolean any = clearRow(out, 0, y);
+        Arrays.fill(out, 0L);
+        dst.setWords(y, out, 0);
+        return any;
+    }
+
+    /**
+     * @return whether both buffers hold the same generation.
+     */
+    private boolean sameWords() {
+        if(front instanceof BitMap) {
+            return Arrays.equals(((BitMap)front).words(),
+                    ((BitMap)back).words());
+        }
+        int n = wordsPerRow;
+        for(int y = 0; y < height; y++) {
+            ((OffHeapMap)front).getWords(y, window, 0);
+            ((OffHeapMap)back).getWords(y, window, n);
+            for(int k = 0; k < n; k++) {
+                if(window[k] != window[n + k]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void swap() {
+        if(back instanceof BitMap) {
+            ((BitMap)back).modified();
+        }
+        Map t = front;
+        front = back;
+        back = t;
+    }
+
+    /**
+     * Writes the next generation of row y into dst from offset to, given
+     * rows y - 1, y and y + 1 in src from offsets up, mid and down.
+     * @param incremental whether only words near last step's changes need
+     * computing.
+     * @return whether any word of the row changed.
+     */
+    private boolean stepRow(CaRule rule, long[] src, int up, int mid,
+            int down, long[] dst, int to, int y, boolean incremental) {
+        int n = wordsPerRow;
+        int set = y * setsPerRow;
+        if(incremental) {
+            for(int k = 0; k < n; k++) {
+                int i = set + (k >>> 6);
+                long around = changed[i - setsPerRow] | changed[i]
+                        | changed[i + setsPerRow];
+                near[k] = (around >>> k & 1L) != 0;
+            }
+        }
+        // Changed words of the current set.
+        long bits = 0L;
+        boolean any = false;
+        for(int k = 0; k < n; k++) {
+            long next;
+            if(incremental && !near[k] && (k == 0 || !near[k - 1])
+                    && (k == n - 1 || !near[k + 1])) {
+                next = src[mid + k];
+            } else {
+                // Walls are clear bits, so count the inverted words.
+                long u = ~src[up + k];
+                long m = ~src[mid + k];
+                long d = ~src[down + k];
+                long uPrev = k > 0 ? ~src[up + k - 1] : 0L;
+                long mPrev = k > 0 ? ~src[mid + k - 1] : 0L;
+                long dPrev = k > 0 ? ~src[down + k - 1] : 0L;
+                long uNext = k < n - 1 ? ~src[up + k + 1] : 0L;
+                long mNext = k < n - 1 ? ~src[mid + k + 1] : 0L;
+                long dNext = k < n - 1 ? ~src[down + k + 1] : 0L;
+
+                // Neighbours lined up with the tile they belong to.
+                long uw = u << 1 | uPrev >>> 63;
+                long ue = u >>> 1 | uNext << 63;
+                long mw = m << 1 | mPrev >>> 63;
+                long me = m >>> 1 | mNext << 63;
+                long dw = d << 1 | dPrev >>> 63;
+                long de = d >>> 1 | dNext << 63;
+
+                // Sum the eight inputs into a 4 bit count (b3 b2 b1 b0).
+                long s1 = uw ^ u ^ ue;
+                long c1 = (uw & u) | (ue & (uw ^ u));
+                long s2 = mw ^ me ^ dw;
+                long c2 = (mw & me) | (dw & (mw ^ me));
+                long s3 = d ^ de;
+                long c3 = d & de;
+                long b0 = s1 ^ s2 ^ s3;
+                long c4 = (s1 & s2) | (s3 & (s1 ^ s2));
+                long t = c1 ^ c2 ^ c3;
+                long c5 = (c1 & c2) | (c3 & (c1 ^ c2));
+                long b1 = t ^ c4;
+                long c6 = t & c4;
+                long b2 = c5 ^ c6;
+                long b3 = c5 & c6;
+
+                long walls = rule.walls(m, b3, b2, b1, b0);
+                long mask = -1L;
+                if(k == 0) {
+                    mask &= firstMask;
+                }
+                if(k == n - 1) {
+                    mask &= lastMask;
+                }
+                next = ~walls & mask;
+            }
+            dst[to + k] = next;
+            bits |= (next != src[mid + k] ? 1L : 0L) << k;
+            if((k & 63) == 63 || k == n - 1) {
+                nextChanged[set + (k >>> 6)] = bits;
+                any |= bits != 0L;
+                bits = 0L;
+            }
+        }
+        return any;
+    }
+}
@@ -0,0 +1,197 @@
+package buzaan.procgen;
+
+import java.util.Arrays;
+
+/**
+ * A map of WALL and SPACE tiles packed one bit per tile.
+ * Each row starts on a fresh 64-bit word, with the tile at x held in bit
+ * (x % 64) of word (x / 64). A set bit is SPACE and a clear bit is WALL, so a
+ * new map is solid wall just like a new RgbMap. Padding bits past the end of
+ * a row are always clear.
+ *
+ * Any other tile value is rejected. The RGB form is only built when asked
+ * for through toRgb().
+ * @author buzaan
+ */
+public class BitMap extends Map {
+    private final long[] words;
+    private final int wordsPerRow;
+    // Mask of the valid bits in the last word of each row.
+    private final long lastWordMask;
+    private RgbMap rgb;
+
+    public BitMap(int width, int height) {
+        super(width, height);
+        wordsPerRow = (width + 63) >>> 6;
+        if((long)wordsPerRow * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Map is too large for a"
+                    + " BitMap; use an OffHeapMap instead.");
+        }
+        words = new long[wordsPerRow * height];
+        lastWordMask = -1L >>> (wordsPerRow * 64 - width);
+    }
+
+    @Override
+    public int getTile(int x, int y) {
+        long word = words[y * wordsPerRow + (x >>> 6)];
+        return (word >>> x & 1L) != 0 ? SPACE : WALL;
+    }
+
+    @Override
+    public void setTile(int x, int y, int value) {
+        int i = y * wordsPerRow + (x >>> 6);
+        if(value == SPACE) {
+            words[i] |= 1L << x;
+        } else if(value == WALL) {
+            words[i] &= ~(1L << x);
+        } else {
+            throw new IllegalArgumentException(
+                    "Only WALL or SPACE can be stored in a BitMap.");
+        }
+        rgb = null;
+    }
+
+    @Override
+    public void getRow(int y, int[] row) {
+        int w = getWidth();
+        int offset = y * wordsPerRow;
+        for(int k = 0; k < wordsPerRow; k++) {
+            long word = words[offset + k];
+            int end = Math.min(w, (k + 1) * 64);
+            for(int x = k * 64; x < end; x++) {
+                row[x] = (word >>> x & 1L) != 0 ? SPACE : WALL;
+            }
+        }
+    }
+
+    @Override
+    public void setRow(int y, int[] row) {
+        int w = getWidth();
+        int offset = y * wordsPerRow;
+        for(int k = 0; k < wordsPerRow; k++) {
+            long word = 0L;
+            int end = Math.min(w, (k + 1) * 64);
+            for(int x = k * 64; x < end; x++) {
+                if(toBit(row[x])) {
+                    word |= 1L << x;
+                }
+            }
+            words[offset + k] = word;
+        }
+        rgb = null;
+    }
+
+    /**
+     * Sets every tile in the map to c.
+     */
+    public void fill(int c) {
+        if(toBit(c)) {
+            Arrays.fill(words, -1L);
+            for(int i = wordsPerRow - 1; i < words.length; i += wordsPerRow) {
+                words[i] = lastWordMask;
+            }
+        } else {
+            Arrays.fill(words, 0L);
+        }
+        rgb = null;
+    }
+
+    @Override
+    public void fillSpan(int y, int x1, int x2, int c) {
+        boolean space = toBit(c);
+        if(x1 >= x2) {
+            return;
+        }
+        int row = y * wordsPerRow;
+        int first = x1 >>> 6;
+        int last = (x2 - 1) >>> 6;
+        long firstMask = -1L << x1;
+        long lastMask = -1L >>> (63 - ((x2 - 1) & 63));
+        for(int k = first; k <= last; k++) {
+            long mask = -1L;
+            if(k == first) {
+                mask &= firstMask;
+            }
+            if(k == last) {
+                mask &= lastMask;
+            }
+            if(space) {
+                words[row + k] |= mask;
+            } else {
+                words[row + k] &= ~mask;
+            }
+        }
+        rgb = null;
+    }
+
+    /**
+     * @return the number of tiles equal to c.
+     */
+    public long count(int c) {
+        long spaces = 0;
+        for(long word : words) {
+            spaces += Long.bitCount(word);
+        }
+        return toBit(c) ? spaces : (long)getWidth() * getHeight() - spaces;
+    }
+
+    @Override
+    public long byteSize() {
+        return 8L * words.length;
+    }
+
+    @Override
+    public RgbMap toRgb() {
+        if(rgb == null) {
+            RgbMap out = new RgbMap(getWidth(), getHeight());
+            int[] row = new int[getWidth()];
+            for(int y = 0; y < getHeight(); y++) {
+                getRow(y, row);
+                out.setRow(y, row);
+            }
+            rgb = out;
+        }
+        return rgb;
+    }
+
+    @Override
+    protected void copyTo(Map dest) {
+        if(dest instanceof BitMap) {
+            BitMap b = (BitMap)dest;
+            System.arraycopy(words, 0, b.words, 0, words.length);
+            b.rgb = null;
+        } else if(dest instanceof OffHeapMap
+                && ((OffHeapMap)dest).isBinary()) {
+            ((OffHeapMap)dest).copyFrom(this);
+        } else {
+            super.copyTo(dest);
+        }
+    }
+
+    long[] words() {
+        return words;
+    }
+
+    int wordsPerRow() {
+        return wordsPerRow;
+    }
+
+    long lastWordMask() {
+        return lastWordMask;
+    }
+
+    /**
+     * Must be called after writing to words() directly.
+     */
+    void modified() {
+        rgb = null;
+    }
+
+    private static boolean toBit(int c) {
+        if(c != SPACE && c != WALL) {
+            throw new IllegalArgumentException(
+                    "Only WALL or SPACE can be stored in a BitMap.");
+        }
+        return c == SPACE;
+    }
+}
@@ -0,0 +1,389 @@
+package buzaan.procgen;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A Life-like cellular automaton rule, compiled from a B/S rulestring.
+ * WALL tiles are the live cells: a WALL tile stays WALL when its count of
+ * WALL neighbours is one of the survival counts, and a SPACE tile becomes
+ * WALL when the count is one of the birth counts. "B5678/S5678" is the cave
+ * rule CellularAutomataMapGenerator has always used.
+ *
+ * Neighbours are the (2r + 1)^2 - 1 tiles of the square of radius r around
+ * a tile. Tiles beyond the edge of the map count as walls, and the outermost
+ * ring of tiles always stays WALL.
+ *
+ * The counts are compiled into lookup tables. At radius 1 over BitMaps or
+ * binary OffHeapMaps a generation is stepped 64 tiles at a time by
+ * BitAutomaton. Otherwise the counts come from a summed-area table, so the
+ * cost per tile doesn't grow with the radius; OffHeapMaps, and maps too large
+ * for the table, slide a window of rows down each band instead, so only a
+ * few rows are held on the heap.
+ * @author buzaan
+ */
+public final class CaRule {
+    public static final CaRule CAVE = parse("B5678/S5678");
+
+    private final String rule;
+    private final int radius;
+    // Indexed by neighbour count.
+    private final boolean[] birth;
+    private final boolean[] survive;
+    // Counts in each set, for BitAutomaton.
+    private final int[] birthCounts;
+    private final int[] surviveCounts;
+    // The rule is "WALL when count >= threshold" whatever the tile was, or -1.
+    private final int threshold;
+
+    private CaRule(String rule, int radius, boolean[] birth, boolean[] survive) {
+        this.rule = rule;
+        this.radius = radius;
+        this.birth = birth;
+        this.survive = survive;
+        birthCounts = counts(birth);
+        surviveCounts = counts(survive);
+        int t = -1;
+        if(Arrays.equals(birth, survive)) {
+            t = birth.length;
+            while(t > 0 && birth[t - 1]) {
+                t--;
+            }
+            for(int c = 0; c < t; c++) {
+                if(birth[c]) {
+                    t = -1;
+                    break;
+                }
+            }
+        }
+        threshold = t;
+    }
+
+    public static CaRule parse(String rule) {
+        return parse(rule, 1);
+    }
+
+    /**
+     * Parses a rulestring such as "B3/S23". Counts are single digits, or
+     * for larger radii a comma separated list of counts and ranges, such as
+     * "B10-14,20/S9-24". Either part may come first or be empty.
+     */
+    public static CaRule parse(String rule, int radius) {
+        if(radius < 1) {
+            throw new IllegalArgumentException("Radius must be positive.");
+        }
+        int side = 2 * radius + 1;
+        int max = side * side - 1;
+        boolean[] birth = null;
+        boolean[] survive = null;
+        for(String part : rule.trim().split("/")) {
+            if(part.isEmpty()) {
+                throw new IllegalArgumentException("Bad rule: " + rule);
+            }
+            char kind = Character.toUpperCase(part.charAt(0));
+            boolean[] counts = parseCounts(part.substring(1), max, rule);
+            if(kind == 'B' && birth == null) {
+                birth = counts;
+            } else if(kind == 'S' && survive == null) {
+                survive = counts;
+            } else {
+                throw new IllegalArgumentException("Bad rule: " + rule);
+            }
+        }
+        if(birth == null || survive == null) {
+            throw new IllegalArgumentException(
+                    "Rule needs both B and S parts: " + rule);
+        }
+        return new CaRule(rule.trim(), radius, birth, survive);
+    }
+
+    private static boolean[] parseCounts(String s, int max, String rule) {
+        boolean[] out = new boolean[max + 1];
+        try {
+            if(s.indexOf(',') < 0 && s.indexOf('-') < 0) {
+                for(int i = 0; i < s.length(); i++) {
+                    set(out, Integer.parseInt(s.substring(i, i + 1)), rule);
+                }
+            } else {
+                for(String item : s.split(",")) {
+                    int dash = item.indexOf('-');
+                    int lo = Integer.parseInt(dash < 0
+                            ? item : item.substring(0, dash));
+                    int hi = dash < 0
+                            ? lo : Integer.parseInt(item.substring(dash + 1));
+                    for(int c = lo; c <= hi; c++) {
+                        set(out, c, rule);
+                    }
+                }
+            }
+        } catch(NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad rule: " + rule);
+        }
+        return out;
+    }
+
+    private static void set(boolean[] counts, int c, String rule) {
+        if(c < 0 || c >= counts.length) {
+            throw new IllegalArgumentException("Count " + c
+                    + " out of range in rule " + rule);
+        }
+        counts[c] = true;
+    }
+
+    private static int[] counts(boolean[] set) {
+        int n = 0;
+        for(boolean b : set) {
+            n += b ? 1 : 0;
+        }
+        int[] out = new int[n];
+        for(int c = 0, i = 0; c < set.length; c++) {
+            if(set[c]) {
+                out[i++] = c;
+            }
+        }
+        return out;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return whether a tile is WALL in the next generation.
+     * @param wall whether it is WALL now.
+     * @param walls how many of its neighbours are WALL.
+     */
+    public boolean next(boolean wall, int walls) {
+        return wall ? survive[walls] : birth[walls];
+    }
+
+    /**
+     * Applies the rule to 64 tiles at once, for BitAutomaton. Each bit of
+     * wall says whether a tile is WALL and the same bit of b3..b0 gives its
+     * count of WALL neighbours.
+     * @return the tiles that are WALL in the next generation.
+     */
+    long walls(long wall, long b3, long b2, long b1, long b0) {
+        if(threshold == 5) {
+            return b3 | (b2 & (b1 | b0));
+        } else if(threshold >= 0) {
+            return atLeast(threshold, b3, b2, b1, b0);
+        }
+        long born = matching(birthCounts, b3, b2, b1, b0);
+        long stay = matching(surviveCounts, b3, b2, b1, b0);
+        return (~wall & born) | (wall & stay);
+    }
+
+    /**
+     * @return lanes whose count b3..b0 is at least k.
+     */
+    private static long atLeast(int k, long b3, long b2, long b1, long b0) {
+        long[] bits = {b0, b1, b2, b3};
+        long greater = 0L;
+        long equal = -1L;
+        for(int i = 3; i >= 0; i--) {
+            if((k >>> i & 1) != 0) {
+                equal &= bits[i];
+            } else {
+                greater |= equal & bits[i];
+                equal &= ~bits[i];
+            }
+        }
+        return greater | equal;
+    }
+
+    /**
+     * @return lanes whose count b3..b0 is one of counts.
+     */
+    private static long matching(int[] counts,
+            long b3, long b2, long b1, long b0) {
+        long out = 0L;
+        for(int c : counts) {
+            out |= ((c & 8) != 0 ? b3 : ~b3) & ((c & 4) != 0 ? b2 : ~b2)
+                    & ((c & 2) != 0 ? b1 : ~b1) & ((c & 1) != 0 ? b0 : ~b0);
+        }
+        return out;
+    }
+
+    /**
+     * Writes the generation after src into dest, which has the same
+     * dimensions and must not be src.
+     */
+    public void step(Map src, Map dest) {
+        if(src == dest) {
+            throw new IllegalArgumentException("Can't step a map in place.");
+        }
+        if(src.getWidth() != dest.getWidth()
+                || src.getHeight() != dest.getHeight()) {
+            throw new IllegalArgumentException("Maps differ in size.");
+        }
+        long padded = (long)(src.getWidth() + 2 * radius + 1)
+                * (src.getHeight() + 2 * radius + 1);
+        if(radius == 1 && BitAutomaton.canStep(src, dest)) {
+            new BitAutomaton(src, dest).step(this);
+        } else if(src instanceof OffHeapMap || padded > Integer.MAX_VALUE) {
+            stepWindowed(src, dest);
+        } else {
+            stepCounted(src, dest);
+        }
+    }
+
+    /**
+     * Steps bands of rows in parallel, each sliding a window of 2 * radius + 1
+     * rows down the band and keeping a count of walls in each column of it.
+     */
+    void stepWindowed(final Map src, final Map dest) {
+        final int w = src.getWidth();
+        final int h = src.getHeight();
+        final int r = radius;
+        RowBands.run(h, ForkJoinPool.commonPool(), new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                int side = 2 * r + 1;
+                // Whether each tile of the window's rows is WALL, row j in
+                // slot j mod side.
+                boolean[][] walls = new boolean[side][w];
+                // cols[i] is the number of walls in padded column i, tile
+                // i - r, of the window. Padding columns are all wall.
+                int[] cols = new int[w + 2 * r];
+                Arrays.fill(cols, side);
+                Arrays.fill(cols, r, r + w, 0);
+                int[] tiles = new int[w];
+                for(int j = y1 - r; j <= y1 + r; j++) {
+                    add(j, walls, cols, tiles, 1);
+                }
+                // sums[i] is the number of walls in padded columns [0, i).
+                int[] sums = new int[w + 2 * r + 1];
+                int[] row = new int[w];
+                for(int y = y1; y < y2; y++) {
+                    if(y > y1) {
+                        add(y - 1 - r, walls, cols, tiles, -1);
+                        add(y + r, walls, cols, tiles, 1);
+                    }
+                    for(int i = 0; i < cols.length; i++) {
+                        sums[i + 1] = sums[i] + cols[i];
+                    }
+                    boolean[] centre = walls[Math.floorMod(y, side)];
+                    for(int x = 0; x < w; x++) {
+                        boolean wall = centre[x];
+                        int total = sums[x + side] - sums[x];
+                        boolean border = x == 0 || y == 0
+                                || x == w - 1 || y == h - 1;
+                        row[x] = border
+                                || next(wall, total - (wall ? 1 : 0))
+                                ? Map.WALL : Map.SPACE;
+                    }
+                    dest.setRow(y, row);
+                }
+            }
+
+            /**
+             * Adds row j of the map to the window's column counts, or takes
+             * it away when sign is -1. Rows off the map are all wall.
+             */
+            private void add(int j, boolean[][] walls, int[] cols,
+                    int[] tiles, int sign) {
+                boolean[] slot = walls[Math.floorMod(j, walls.length)];
+                if(sign > 0) {
+                    if(j >= 0 && j < h) {
+                        src.getRow(j, tiles);
+                        for(int x = 0; x < w; x++) {
+                            slot[x] = tiles[x] == Map.WALL;
+                        }
+                    } else {
+                        Arrays.fill(slot, true);
+                    }
+                }
+                for(int x = 0; x < w; x++) {
+                    if(slot[x]) {
+                        cols[x + r] += sign;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Steps through a summed-area table of walls over the map padded by the
+     * radius on every side.
+     */
+    void stepCounted(Map src, final Map dest) {
+        final int w = src.getWidth();
+        final int h = src.getHeight();
+        final int r = radius;
+        final int stride = w + 2 * r + 1;
+        // sums[j * stride + i] is the number of walls above and left of
+        // padded tile (i, j).
+        final int[] sums = new int[stride * (h + 2 * r + 1)];
+        int[] tiles = new int[w];
+        for(int j = 0; j < h + 2 * r; j++) {
+            int y = j - r;
+            boolean inside = y >= 0 && y < h;
+            if(inside) {
+                src.getRow(y, tiles);
+            }
+            int rowSum = 0;
+            for(int i = 0; i < w + 2 * r; i++) {
+                int x = i - r;
+                if(!inside || x < 0 || x >= w || tiles[x] == Map.WALL) {
+                    rowSum++;
+                }
+                sums[(j + 1) * stride + i + 1] = sums[j * stride + i + 1]
+                        + rowSum;
+            }
+        }
+
+        RowBands.run(h, ForkJoinPool.commonPool(), new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                int side = 2 * r + 1;
+                int[] row = new int[w];
+                for(int y = y1; y < y2; y++) {
+                    // Padded tile (x, y) is the window's top left corner.
+                    int top = y * stride;
+                    int bottom = (y + side) * stride;
+                    for(int x = 0; x < w; x++) {
+                        int total = sums[bottom + x + side] - sums[bottom + x]
+                                - sums[top + x + side] + sums[top + x];
+                        // The tile itself is in the centre of the window.
+                        int centre = (y + r + 1) * stride + x + r + 1;
+                        boolean wall = sums[centre] - sums[centre - 1]
+                                - sums[centre - stride]
+                                + sums[centre - stride - 1] != 0;
+                        boolean border = x == 0 || y == 0
+                                || x == w - 1 || y == h - 1;
+                        row[x] = border
+                                || next(wall, total - (wall ? 1 : 0))
+                                ? Map.WALL : Map.SPACE;
+                    }
+                    dest.setRow(y, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rules are equal when they give the same next generation, however
+     * their rulestrings were written.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof CaRule)) {
+            return false;
+        }
+        CaRule r = (CaRule)o;
+        return radius == r.radius && Arrays.equals(birth, r.birth)
+                && Arrays.equals(survive, r.survive);
+    }
+
+    @Override
+    public int hashCode() {
+        return (radius * 31 + Arrays.hashCode(birth)) * 31
+                + Arrays.hashCode(survive);
+    }
+
+    @Override
+    public String toString() {
+        return radius == 1 ? rule : rule + " r" + radius;
+    }
+}
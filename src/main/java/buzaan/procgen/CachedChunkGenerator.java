@@ -0,0 +1,47 @@
+package buzaan.procgen;
+
+/**
+ * Serves chunks from a MapCache, only generating those it hasn't seen.
+ * Chunks are keyed by the wrapped generator's toString(), which should
+ * describe all of its settings. The maps returned are shared with the cache
+ * and must not be modified.
+ * @author buzaan
+ */
+public class CachedChunkGenerator implements IChunkGenerator {
+    private final IChunkGenerator generator;
+    private final MapCache cache;
+    private final String config;
+
+    CachedChunkGenerator(IChunkGenerator generator, MapCache cache) {
+        this.generator = generator;
+        this.cache = cache;
+        config = generator.toString();
+    }
+
+    @Override
+    public int getChunkWidth() {
+        return generator.getChunkWidth();
+    }
+
+    @Override
+    public int getChunkHeight() {
+        return generator.getChunkHeight();
+    }
+
+    @Override
+    public Map generateChunk(final long seed, final int cx, final int cy) {
+        int w = getChunkWidth();
+        int h = getChunkHeight();
+        MapCache.Key key = new MapCache.Key(config, seed, cx * w, cy * h, w, h);
+        return cache.get(key, new MapCache.Loader() {
+            @Override
+            public Map load() {
+                return generator.generateChunk(seed, cx, cy);
+            }
+        });
+    }
+
+    public MapCache getCache() {
+        return cache;
+    }
+}
@@ -1,67 +1,158 @@
-
 package buzaan.procgen;
 
+import java.util.Arrays;
+
 /**
  * Generates a map using simple CA rules.
  * Uses a cellular automaton like Conway's game of life or Bryan's brain to
  * generate a cave-like map. The initial state is seeded by a RandomMapGenerator
  * and then a CA rule is applied to each cell for a number of generations.
+ * By default that is two generations of CaRule.CAVE, where a cell becomes a
+ * wall when at least 5 of its neighbours are walls; setSchedule gives each
+ * generation its own rule. Only the parts of the map that are still
+ * changing are recomputed, so long schedules are cheap once caves settle.
+ *
+ * The generated map may be disjoint. Optionally, caves smaller than a minimum
+ * size are filled in and the rest are joined up with corridors, using
+ * Regions; both are off by default.
  *
- * The generated map may be disjoint, but this possibility is ignored for now.
+ * Generations are stepped in two BitMaps, a bit per tile each. When the
+ * destination is an OffHeapMap they are stepped in binary OffHeapMaps
+ * instead, a few rows at a time, so the map never has a copy on the heap.
+ * Filling and connecting caves takes an int per tile on the heap, and is
+ * refused for maps of more than Integer.MAX_VALUE tiles.
  * @author buzaan
  */
-public class CellularAutomataMapGenerator implements IMapGenerator {
+public class CellularAutomataMapGenerator extends AbstractMapGenerator {
     private final int mapWidth;
     private final int mapHeight;
-    private static final int NUM_GENERATIONS = 2;
-    private final Map tempMap;
+    private volatile CaRule[] schedule = {CaRule.CAVE, CaRule.CAVE};
+    private volatile int minCaveSize = 0;
+    private volatile boolean connectCaves = false;
+
+    private final RandomMapGenerator initialGen;
 
     CellularAutomataMapGenerator(int width, int height) {
         mapWidth = width;
         mapHeight = height;
-        tempMap = new Map(width, height);
+        initialGen = new RandomMapGenerator(width, height);
     }
 
-    int rule(Map m, int x, int y) {
-        int wallNeighbors = 0;
-        for(int xn = x - 1; xn <= x + 1; xn++) {
-            for(int yn = y - 1; yn <= y + 1; yn++) {
-                // Only process neighbors, not the tile in question
-                if(!(xn == x && yn == y)) {
-                    if(m.getTile(xn, yn) == Map.WALL) {
-                        wallNeighbors++;
-                    }
-                }
-            }
+    /**
+     * Steps rule for the given number of generations. Steps past the point
+     * where the map stops changing cost next to nothing.
+     */
+    public void setSchedule(CaRule rule, int generations) {
+        if(generations < 0) {
+            throw new IllegalArgumentException("Negative generations.");
         }
-        return wallNeighbors >= 5 ? Map.WALL : Map.SPACE;
+        CaRule[] rules = new CaRule[generations];
+        Arrays.fill(rules, rule);
+        setSchedule(rules);
     }
 
-    void copyMap(Map src, Map dst) {
-        for(int x = 0; x < src.getWidth(); x++){
-            for(int y = 0; y < src.getHeight(); y++) {
-                dst.setTile(x, y, src.getTile(x, y));
+    /**
+     * Sets the chance of each tile starting out as WALL, 0.5 by default.
+     */
+    public void setWallProbability(double p) {
+        initialGen.setWallProbability(p);
+    }
+
+    /**
+     * Sets the rule for each generation, in order, so the number of rules is
+     * the number of generations.
+     */
+    public void setSchedule(CaRule... rules) {
+        for(CaRule r : rules) {
+            if(r == null) {
+                throw new IllegalArgumentException("Null rule in schedule.");
             }
         }
+        schedule = rules.clone();
     }
 
-    private void step(Map m) {
-        for(int x = 1; x < m.getWidth() - 1; x++) {
-            for(int y = 1; y < m.getHeight() - 1; y++) {
-                tempMap.setTile(x, y, rule(m, x, y));
-            }
+    /**
+     * Caves of fewer than size tiles are filled with wall. 0 keeps them all.
+     */
+    public void setMinCaveSize(int size) {
+        if(size < 0) {
+            throw new IllegalArgumentException("Negative cave size.");
         }
-        Map.copy(tempMap, m);
+        minCaveSize = size;
+    }
+
+    /**
+     * Whether to join every cave to the largest with corridors.
+     */
+    public void setConnectCaves(boolean connect) {
+        connectCaves = connect;
+    }
+
+    @Override
+    public Map generate(long seed, GenerationMonitor monitor) {
+        return generate(seed, takeBitMap(mapWidth, mapHeight), monitor);
     }
 
     @Override
-    public Map generate() {
-        RandomMapGenerator initialGen = new RandomMapGenerator(mapWidth, mapHeight);
-        Map map = initialGen.generate();
-        for(int i = 0; i < NUM_GENERATIONS; i++) {
-            step(map);
+    public Map generate(long seed, Map dest, GenerationMonitor monitor) {
+        checkDest(dest, mapWidth, mapHeight);
+        int minSize = minCaveSize;
+        boolean connect = connectCaves;
+        if((minSize > 1 || connect)
+                && (long)mapWidth * mapHeight > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Map is too large to fill or connect caves in.");
+        }
+        // Generations are stepped in BitMaps, or binary OffHeapMaps for
+        // off-heap destinations, so other maps get a copy.
+        boolean offHeap = dest instanceof OffHeapMap;
+        Map map = dest instanceof BitMap
+                || offHeap && ((OffHeapMap)dest).isBinary()
+                ? dest
+                : buffer(offHeap);
+        // The initial fill counts as one more generation's worth of work.
+        CaRule[] rules = schedule;
+        double steps = rules.length + 1;
+        initialGen.generate(seed, map, part(monitor, 0, 1 / steps));
+        Map scratch = buffer(offHeap);
+        try {
+            BitAutomaton ca = new BitAutomaton(map, scratch);
+            for(int i = 0; i < rules.length; i++) {
+                monitor.checkpoint((i + 1) / steps);
+                // Nothing more to do at a fixed point of the same rule.
+                if(!ca.isStable() || !rules[i].equals(rules[i - 1])) {
+                    ca.step(rules[i]);
+                }
+            }
+            if(ca.current() != map) {
+                Map.copy(ca.current(), map);
+            }
+        } finally {
+            give(scratch);
         }
-        return map;
+
+        if(minSize > 1 || connect) {
+            monitor.checkpoint(1);
+            Regions caves = Regions.label(map, Map.SPACE);
+            caves.removeSmallerThan(map, minSize, Map.WALL);
+            if(connect) {
+                caves.connect(map);
+            }
+        }
+        if(map != dest) {
+            Map.copy(map, dest);
+            give(map);
+        }
+        return dest;
+    }
+
+    /**
+     * @return a map to step generations in, off the heap if offHeap.
+     */
+    private Map buffer(boolean offHeap) {
+        return offHeap
+                ? new OffHeapMap(mapWidth, mapHeight, true)
+                : takeBitMap(mapWidth, mapHeight);
     }
 
 }
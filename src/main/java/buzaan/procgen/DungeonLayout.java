@@ -0,0 +1,202 @@
+package buzaan.procgen;
+
+/**
+ * The rooms, corridors and partition tree of a BSP dungeon.
+ * Everything is held in int arrays, four ints to an inclusive rectangle, so
+ * rooms can be found and iterated over without drawing the dungeon into a
+ * map and scanning its tiles. Drawing is a separate step, through draw() or
+ * toMap(), for callers that want tiles.
+ *
+ * The partition tree is perfectly balanced and stored in order: node 2i is
+ * the partition holding room i and node 2i + 1 is the split between rooms i
+ * and i + 1, whose corridors join the two halves. Children are found by
+ * arithmetic, and finding the room or corridors at a point only visits the
+ * partitions containing it.
+ * @author buzaan
+ */
+public final class DungeonLayout {
+    private final int width;
+    private final int height;
+    private final int[] rooms;
+    private final int[] nodes;
+    private final int[] corridors;
+    // Corridors [corridorStart[i], corridorStart[i + 1]) belong to split i.
+    private final int[] corridorStart;
+
+    DungeonLayout(int width, int height, int[] rooms, int[] nodes,
+            int[] corridors, int[] corridorStart) {
+        this.width = width;
+        this.height = height;
+        this.rooms = rooms;
+        this.nodes = nodes;
+        this.corridors = corridors;
+        this.corridorStart = corridorStart;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRoomCount() {
+        return rooms.length / 4;
+    }
+
+    public Rect getRoom(int i) {
+        return rect(rooms, i);
+    }
+
+    public int getCorridorCount() {
+        return corridors.length / 4;
+    }
+
+    /**
+     * @return corridor segment i, one tile wide.
+     */
+    public Rect getCorridor(int i) {
+        return rect(corridors, i);
+    }
+
+    public int getNodeCount() {
+        return nodes.length / 4;
+    }
+
+    public int getRoot() {
+        return getRoomCount() - 1;
+    }
+
+    public boolean isLeaf(int node) {
+        return (node & 1) == 0;
+    }
+
+    public int getLeft(int node) {
+        return node - childOffset(node);
+    }
+
+    public int getRight(int node) {
+        return node + childOffset(node);
+    }
+
+    /**
+     * @return the room in leaf node.
+     */
+    public int getRoomOf(int node) {
+        if(!isLeaf(node)) {
+            throw new IllegalArgumentException("Node " + node + " is a split.");
+        }
+        return node / 2;
+    }
+
+    /**
+     * @return the area node was allotted, inclusive.
+     */
+    public Rect getPartition(int node) {
+        return rect(nodes, node);
+    }
+
+    /**
+     * @return the room containing tile (x, y), or -1 if there is none.
+     */
+    public int roomAt(int x, int y) {
+        int node = leafAt(x, y, null);
+        if(node < 0 || !contains(rooms, node / 2, x, y)) {
+            return -1;
+        }
+        return node / 2;
+    }
+
+    /**
+     * @return whether tile (x, y) is in a room or corridor.
+     */
+    public boolean isOpen(int x, int y) {
+        boolean[] corridor = new boolean[1];
+        int node = leafAt(x, y, corridor);
+        return corridor[0] || (node >= 0 && contains(rooms, node / 2, x, y));
+    }
+
+    /**
+     * Descends to the leaf whose partition contains (x, y), noting in
+     * corridor[0] whether a corridor of a split on the way contains it.
+     * @return the leaf, or -1 if no partition contains (x, y).
+     */
+    private int leafAt(int x, int y, boolean[] corridor) {
+        int node = getRoot();
+        if(!contains(nodes, node, x, y)) {
+            return -1;
+        }
+        while(!isLeaf(node)) {
+            if(corridor != null && !corridor[0]) {
+                int split = node / 2;
+                for(int i = corridorStart[split];
+                        i < corridorStart[split + 1]; i++) {
+                    if(contains(corridors, i, x, y)) {
+                        corridor[0] = true;
+                        break;
+                    }
+                }
+            }
+            int left = getLeft(node);
+            int right = getRight(node);
+            if(contains(nodes, left, x, y)) {
+                node = left;
+            } else if(contains(nodes, right, x, y)) {
+                node = right;
+            } else {
+                return -1;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Opens every room and corridor in m, which is left otherwise untouched.
+     */
+    public void draw(Map m) {
+        drawAll(m, rooms);
+        drawAll(m, corridors);
+    }
+
+    /**
+     * @return a new map of the dungeon, walls everywhere but the rooms and
+     * corridors.
+     */
+    public BitMap toMap() {
+        BitMap out = new BitMap(width, height);
+        draw(out);
+        return out;
+    }
+
+    private static void drawAll(Map m, int[] a) {
+        for(int i = 0; i < a.length; i += 4) {
+            m.fillRegion(a[i], a[i + 1],
+                    a[i + 2] - a[i], a[i + 3] - a[i + 1], Map.SPACE);
+        }
+    }
+
+    private static int childOffset(int node) {
+        int level = Integer.numberOfTrailingZeros(~node);
+        if(level == 0) {
+            throw new IllegalArgumentException("Node " + node + " is a leaf.");
+        }
+        return 1 << (level - 1);
+    }
+
+    private static Rect rect(int[] a, int i) {
+        return new Rect(a[4 * i], a[4 * i + 1], a[4 * i + 2], a[4 * i + 3]);
+    }
+
+    private static boolean contains(int[] a, int i, int x, int y) {
+        return a[4 * i] <= x && x <= a[4 * i + 2]
+                && a[4 * i + 1] <= y && y <= a[4 * i + 3];
+    }
+
+    @Override
+    public String toString() {
+        return "DungeonLayout(" + width + "x" + height + ", "
+                + getRoomCount() + " rooms, "
+                + getCorridorCount() + " corridors)";
+    }
+}
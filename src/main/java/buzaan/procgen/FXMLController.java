@@ -2,10 +2,12 @@ package buzaan.procgen;
 
 import java.net.URL;
 import java.util.ResourceBundle;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.concurrent.Task;
@@ -16,6 +18,7 @@ import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.paint.Color;
 
 public class FXMLController implements Initializable {
@@ -38,14 +41,34 @@ public class FXMLController implements Initializable {
 
     @FXML
     private Canvas canvas;
+    private MapRenderer renderer;
+
+    @FXML
+    private ProgressBar progress;
+    // Latest generation requested. Older ones are cancelled, since only the
+    // latest is ever displayed.
+    private Task<Map> current;
 
     @FXML
     private void handleButtonAction(ActionEvent event) {
+        if(current != null) {
+            current.cancel(false);
+        }
+        final IMapGenerator gen = generator;
+        final long seed = ThreadLocalRandom.current().nextLong();
         final Task<Map> task = new Task<Map>() {
             @Override
             protected Map call() throws Exception {
                 Thread.currentThread().setName("Generator");
-                return generator.generate();
+                return gen.generate(seed, new GenerationMonitor() {
+                    @Override
+                    public void checkpoint(double done) {
+                        if(isCancelled()) {
+                            throw new CancellationException();
+                        }
+                        updateProgress(done, 1);
+                    }
+                });
             }
         };
         task.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
@@ -62,6 +85,15 @@ public class FXMLController implements Initializable {
                 }
             }
         });
+        task.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                log.log(Level.SEVERE, "Error generating level",
+                        task.getException());
+            }
+        });
+        current = task;
+        progress.progressProperty().bind(task.progressProperty());
         executor.execute(task);
     }
 
@@ -111,25 +143,7 @@ public class FXMLController implements Initializable {
     }
 
     private void displayMap(Map map) {
-        GraphicsContext ctx = canvas.getGraphicsContext2D();
-        ctx.setFill(Color.BLACK);
-        ctx.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
-
-        ctx.setFill(Color.WHITE);
-        for(int x = 0; x < map.getWidth(); x++) {
-            for(int y = 0; y < map.getHeight(); y++) {
-                int cval = map.getTile(x, y);
-                ctx.setFill(Color.rgb(
-                        (cval & 0xff0000) >> 16,
-                        (cval & 0x00ff00) >> 8,
-                        (cval & 0x0000ff)));
-                ctx.fillRect(
-                        x * MainApp.CELL_SIZE,
-                        y * MainApp.CELL_SIZE,
-                        MainApp.CELL_SIZE,
-                        MainApp.CELL_SIZE);
-            }
-        }
+        renderer.render(map);
     }
 
     @Override
@@ -137,5 +151,6 @@ public class FXMLController implements Initializable {
         GraphicsContext ctx = canvas.getGraphicsContext2D();
         ctx.setFill(Color.BLACK);
         ctx.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        renderer = new MapRenderer(canvas);
     }
 }
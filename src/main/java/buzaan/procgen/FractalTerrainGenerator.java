@@ -1,19 +1,22 @@
 package buzaan.procgen;
 
-import java.util.Random;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /** 1/f terrain generation.
  * Generates terrain by applying one of the interpolated generators
  * at increasing levels of granularity and decreasing magnitudes.
  */
-public class FractalTerrainGenerator implements IMapGenerator {
+public class FractalTerrainGenerator extends AbstractMapGenerator
+        implements IChunkGenerator, IHeightGenerator, IStreamGenerator {
     private final int width;
     private final int height;
     private final int level;
-    private final Random rnd = new Random();
-
     // Maximum tile height for lattice chosen here by experimentation.
-    private final RandomTileValue randomValue = new RandomTileValue(0xaf);
+    private static final int LATTICE_MAX = 0xaf;
+    private volatile MapCache latticeCache;
 
 
     public FractalTerrainGenerator(int width, int height, int level) {
@@ -25,14 +28,25 @@ public class FractalTerrainGenerator implements IMapGenerator {
         this.level = level;
     }
 
-    private class RandomTileValue implements Map.Functor {
+    /**
+     * Random values for a lattice whose top left point is world lattice
+     * point (x0, y0).
+     */
+    private static class RandomTileValue implements Map.PureFunctor {
+        private final long seed;
+        private final int x0;
+        private final int y0;
         private final int max;
-        RandomTileValue(int max) {
+        RandomTileValue(long seed, int x0, int y0, int max) {
+            this.seed = seed;
+            this.x0 = x0;
+            this.y0 = y0;
             this.max = max;
         }
         @Override
         public int value(int x, int y) {
-            return rnd.nextInt(max);
+            long hash = SeedHash.hash(seed, x0 + x, y0 + y);
+            return SeedHash.nextInt(hash, max);
         }
     }
 
@@ -42,64 +56,275 @@ public class FractalTerrainGenerator implements IMapGenerator {
         }
         return gcd(b, a & b);
     }
-    /* TODO: would like to re-use interpolation methods from
-    InterpolatedTerrainGenerator but they need modification to work in this
-    context.
-    */
-    private void bicubic(final Map map,
-            final int xsegs, final int ysegs,
-            final double mag) {
-        final int xspacing = map.getWidth() / xsegs;
-        final int yspacing = map.getHeight() / ysegs;
-        final Map lattice = new Map(
-                (map.getWidth() / xspacing) + 1,
-                (map.getHeight() / yspacing) + 1);
-        lattice.apply(randomValue);
-
-        // Apply bicubic interpolation at specified granularity & magnitude
-        map.apply(new Map.Functor() {
-            private double s(double x) {
-                return 3 * Math.pow(x, 2) - 2 * Math.pow(x, 3);
+
+    /**
+     * @param p pool to take the lattice from if it isn't cached, or null.
+     */
+    private Map lattice(final long seed, final int lx0, final int ly0,
+            final int w, final int h, final MapPool p) {
+        MapCache.Loader loader = new MapCache.Loader() {
+            @Override
+            public Map load() {
+                Map lattice = p != null
+                        ? p.takeRgbMap(w, h)
+                        : new RgbMap(w, h);
+                lattice.apply(new RandomTileValue(seed, lx0, ly0, LATTICE_MAX));
+                return lattice;
+            }
+        };
+        MapCache cache = latticeCache;
+        if(cache == null) {
+            return loader.load();
+        }
+        // Lattice values only depend on the seed and position, so lattices
+        // can be shared between generators of any size.
+        return cache.get(
+                new MapCache.Key("FractalLattice", seed, lx0, ly0, w, h),
+                loader);
+    }
+
+    /**
+     * Keeps octave lattices in cache so chunks sharing a lattice don't have
+     * to regenerate it. Null turns caching off.
+     */
+    public void setLatticeCache(MapCache cache) {
+        latticeCache = cache;
+    }
+
+    /**
+     * One octave of a chunk whose top left world tile is (x0, y0): bicubic
+     * interpolation of a random lattice at a given granularity & magnitude.
+     * The lattice only covers the first rows rows of the chunk.
+     */
+    private static class Octave {
+        private final Map lattice;
+        private final int x0;
+        private final int y0;
+        private final int xspacing;
+        private final int yspacing;
+        private final int lx0;
+        private final int ly0;
+        private final double mag;
+        private final SmoothstepTable xs;
+        private final SmoothstepTable ys;
+
+        Octave(FractalTerrainGenerator gen, long seed, int x0, int y0,
+                int rows, int xsegs, int ysegs, double mag, MapPool pool) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.mag = mag;
+            xspacing = gen.width / xsegs;
+            yspacing = gen.height / ysegs;
+            lx0 = Math.floorDiv(x0, xspacing);
+            ly0 = Math.floorDiv(y0, yspacing);
+            lattice = gen.lattice(seed, lx0, ly0,
+                    Math.floorDiv(x0 + gen.width - 1, xspacing) - lx0 + 2,
+                    Math.floorDiv(y0 + rows - 1, yspacing) - ly0 + 2,
+                    pool);
+            xs = new SmoothstepTable(xspacing);
+            ys = new SmoothstepTable(yspacing);
+        }
+
+        private double blend(int lx, int ly, int iy) {
+            return lattice.getTile(lx, ly) * ys.fall[iy]
+                    + lattice.getTile(lx, ly + 1) * ys.rise[iy];
+        }
+
+        private double height(double left, double right, int ix) {
+            return (left * xs.fall[ix] + right * xs.rise[ix]) * mag;
+        }
+
+        /**
+         * @return this octave's contribution to tile (x, y) of the chunk.
+         */
+        double value(int x, int y) {
+            int lx = Math.floorDiv(x0 + x, xspacing) - lx0;
+            int ly = Math.floorDiv(y0 + y, yspacing) - ly0;
+            int ix = Math.floorMod(x0 + x, xspacing);
+            int iy = Math.floorMod(y0 + y, yspacing);
+            return height(blend(lx, ly, iy), blend(lx + 1, ly, iy), ix);
+        }
+
+        /**
+         * Adds this octave to the first width heights in row y.
+         * @param truncate whether to add each height truncated to an int.
+         */
+        void addRow(int y, float[] row, int width, boolean truncate) {
+            int lx = 0;
+            int ly = Math.floorDiv(y0 + y, yspacing) - ly0;
+            int ix = Math.floorMod(x0, xspacing);
+            int iy = Math.floorMod(y0 + y, yspacing);
+            double right = blend(lx, ly, iy);
+            for(int x = 0; x < width; lx++, ix = 0) {
+                double left = right;
+                right = blend(lx + 1, ly, iy);
+                for(; ix < xspacing && x < width; ix++, x++) {
+                    double h = height(left, right, ix);
+                    row[x] += truncate ? (int)h : h;
+                }
+            }
+        }
+    }
+
+    /**
+     * The octaves of the chunk whose top left world tile is (x0, y0).
+     * @param pool pool to take lattices from, or null.
+     */
+    private Octave[] octaves(long seed, int x0, int y0, MapPool pool,
+            GenerationMonitor monitor) {
+        return octaves(seed, x0, y0, height, pool, monitor);
+    }
+
+    /**
+     * As octaves(), covering only the first rows rows of the chunk.
+     */
+    private Octave[] octaves(long seed, int x0, int y0, int rows,
+            MapPool pool, GenerationMonitor monitor) {
+        List<Octave> list = new ArrayList<>();
+        for(int i = 1; i <= level; i *= 2) {
+            // Lattices may be large, so allow stopping between octaves.
+            monitor.checkpoint(0);
+            list.add(new Octave(this, SeedHash.derive(seed, i),
+                    x0, y0, rows, i, i, 1.0 / i, pool));
+        }
+        return list.toArray(new Octave[list.size()]);
+    }
+
+    /**
+     * @return the pool uncached lattices should come from, or null.
+     */
+    private MapPool latticePool() {
+        // Cached lattices are shared, so only uncached ones are pooled.
+        return latticeCache == null ? getMapPool() : null;
+    }
+
+    private static void release(Octave[] octaves, MapPool pool) {
+        if(pool != null) {
+            for(Octave o : octaves) {
+                pool.give(o.lattice);
+            }
+        }
+    }
+
+    /**
+     * Heights summed from octaves. Every octave is summed for a row while it
+     * is in cache, so each tile is only written once.
+     */
+    private HeightField.Functor heights(Octave[] octaves) {
+        return heights(octaves, false);
+    }
+
+    /**
+     * Heights for the RGB maps, which truncate each octave to an int before
+     * summing them as maps always have.
+     */
+    private HeightField.Functor tileHeights(Octave[] octaves) {
+        return heights(octaves, true);
+    }
+
+    private HeightField.Functor heights(final Octave[] octaves,
+            final boolean truncate) {
+        return new HeightField.Functor() {
+            @Override
+            public float value(int x, int y) {
+                double val = 0;
+                for(Octave o : octaves) {
+                    double h = o.value(x, y);
+                    val += truncate ? (int)h : h;
+                }
+                return (float)val;
             }
 
             @Override
-            public int value(int x, int y) {
-                int lx = x / xspacing;
-                int ly = y / yspacing;
-                int ix = x % xspacing;
-                int iy = y % yspacing;
-                int q00 = lattice.getTile(lx, ly);
-                int q10 = lattice.getTile(lx + 1, ly);
-                int q01 = lattice.getTile(lx, ly + 1);
-                int q11 = lattice.getTile(lx + 1, ly + 1);
-                double xp = (double)ix / xspacing;
-                double yp = (double)iy / yspacing;
-                double val = (q00 * s(1.0 - xp) * s(1.0 - yp)
-                        + q10 * s(xp) * s(1.0 - yp)
-                        + q01 * s(1.0 - xp) * s(yp)
-                        + q11 * s(xp) * s(yp)) * mag;
-                int v = map.getTile(x, y) + (int)val;
-                return Integer.min(v, 0xff);
+            public void row(int y, float[] row) {
+                Arrays.fill(row, 0, width, 0f);
+                for(Octave o : octaves) {
+                    o.addRow(y, row, width, truncate);
+                }
             }
-        });
+        };
     }
 
     @Override
-    public Map generate() {
-        final Map map = new Map(width, height);
-        for(int i = 1; i <= level; i *= 2) {
-            bicubic(map, i, i, 1.0 / i);
+    public Map generate(long seed, GenerationMonitor monitor) {
+        return generateChunk(seed, 0, 0, takeRgbMap(width, height), monitor);
+    }
+
+    @Override
+    public Map generate(long seed, Map dest, GenerationMonitor monitor) {
+        return generateChunk(seed, 0, 0, dest, monitor);
+    }
+
+    @Override
+    public int getChunkWidth() {
+        return width;
+    }
+
+    @Override
+    public int getChunkHeight() {
+        return height;
+    }
+
+    @Override
+    public Map generateChunk(long seed, int cx, int cy) {
+        return generateChunk(seed, cx, cy, takeRgbMap(width, height),
+                GenerationMonitor.NONE);
+    }
+
+    private Map generateChunk(long seed, int cx, int cy, Map dest,
+            GenerationMonitor monitor) {
+        checkDest(dest, width, height);
+        MapPool pool = latticePool();
+        Octave[] octaves = octaves(seed, cx * width, cy * height, pool,
+                monitor);
+        try {
+            HeightField.fill(dest, tileHeights(octaves),
+                    HeightField.GREYSCALE, monitor);
+        } finally {
+            release(octaves, pool);
         }
+        return dest;
+    }
+
+    @Override
+    public void stream(final long seed, int bandRows, RowSink sink,
+            GenerationMonitor monitor) throws IOException {
+        final MapPool pool = latticePool();
+        stream(width, height, bandRows, new Bands() {
+            // Bands are opened and closed one at a time.
+            private Octave[] octaves;
+
+            @Override
+            public HeightField.Functor open(int y, int rows) {
+                octaves = octaves(seed, 0, y, rows, pool,
+                        GenerationMonitor.NONE);
+                return tileHeights(octaves);
+            }
 
-        //Convert tiles to greyscale
-        map.apply(new Map.Functor() {
             @Override
-            public int value(int x, int y) {
-                int val = map.getTile(x, y) & 0xff;
-                return (val << 16 | val << 8 | val);
+            public void close(HeightField.Functor band) {
+                release(octaves, pool);
             }
-        });
-        return map;
+        }, sink, monitor);
+    }
+
+    @Override
+    public HeightField generateHeights(long seed, int cx, int cy) {
+        HeightField out = new HeightField(width, height);
+        MapPool pool = latticePool();
+        Octave[] octaves = octaves(seed, cx * width, cy * height, pool,
+                GenerationMonitor.NONE);
+        try {
+            out.apply(heights(octaves));
+        } finally {
+            release(octaves, pool);
+        }
+        return out;
     }
 
+    @Override
+    public String toString() {
+        return "FractalTerrainGenerator(" + width + "x" + height
+                + ", level " + level + ")";
+    }
 }
@@ -0,0 +1,28 @@
+package buzaan.procgen;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Follows the progress of a generation and can stop it.
+ * Generators call checkpoint() between units of work, such as CA generations,
+ * BSP partitions or rows of terrain, and stop by letting the
+ * CancellationException it throws propagate. Generators working in parallel
+ * call it from several threads at once.
+ * @author buzaan
+ */
+public interface GenerationMonitor {
+    /**
+     * @param done fraction of the generation finished so far, in [0, 1].
+     * @throws CancellationException if the generation should stop.
+     */
+    void checkpoint(double done);
+
+    /**
+     * Never cancels and ignores progress.
+     */
+    GenerationMonitor NONE = new GenerationMonitor() {
+        @Override
+        public void checkpoint(double done) {
+        }
+    };
+}
@@ -0,0 +1,42 @@
+package buzaan.procgen;
+
+/**
+ * Creates generators by name, for callers configured from text such as the
+ * command line. Terrain generators use the same spacing and level as the UI.
+ * @author buzaan
+ */
+final class Generators {
+    static final String[] NAMES = {
+        "random", "ca", "bsp", "bilinear", "bicubic", "gradient", "fractal"
+    };
+    private static final int SPACING = 8;
+    private static final int LEVEL = 8;
+
+    private Generators() {
+    }
+
+    static IMapGenerator create(String name, int width, int height) {
+        switch(name) {
+            case "random":
+                return new RandomMapGenerator(width, height);
+            case "ca":
+                return new CellularAutomataMapGenerator(width, height);
+            case "bsp":
+                return new BinaryPartitionMapGenerator(width, height);
+            case "bilinear":
+                return new InterpolatedTerrainGenerator(width, height,
+                        InterpolatedTerrainGenerator.Bilinear(SPACING));
+            case "bicubic":
+                return new InterpolatedTerrainGenerator(width, height,
+                        InterpolatedTerrainGenerator.Bicubic(SPACING));
+            case "gradient":
+                return new InterpolatedTerrainGenerator(width, height,
+                        InterpolatedTerrainGenerator.Gradient(SPACING));
+            case "fractal":
+                return new FractalTerrainGenerator(width, height, LEVEL);
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown generator: " + name);
+        }
+    }
+}
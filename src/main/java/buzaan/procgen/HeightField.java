@@ -0,0 +1,154 @@
+package buzaan.procgen;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A grid of unquantised terrain heights.
+ * Terrain generators can emit heights directly for consumers that work on
+ * the heights themselves. Turning them into colours is a separate step
+ * through a Palette, and only happens when a Map is asked for.
+ * @author buzaan
+ */
+public class HeightField {
+    private final int width;
+    private final int height;
+    private final float[] data;
+
+    /**
+     * Maps a height onto an RGB tile value.
+     */
+    public static interface Palette {
+        int color(float h);
+    }
+
+    /**
+     * Truncates heights to [0, 0xff] and uses them as a grey level.
+     */
+    public static final Palette GREYSCALE = new Palette() {
+        @Override
+        public int color(float h) {
+            int val = Math.max(0, Math.min((int)h, 0xff));
+            return (val << 16 | val << 8 | val);
+        }
+    };
+
+    /**
+     * Gives the height at each point. Like Map.PureFunctor it must be safe to
+     * call from several threads, and row() must agree with value().
+     */
+    public static interface Functor {
+        float value(int x, int y);
+
+        /**
+         * Fills row[0, width) with the heights for row y.
+         */
+        void row(int y, float[] row);
+    }
+
+    public HeightField(int width, int height) {
+        this.width = width;
+        this.height = height;
+        data = new float[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float get(int x, int y) {
+        return data[x + y * width];
+    }
+
+    public void set(int x, int y, float h) {
+        data[x + y * width] = h;
+    }
+
+    /**
+     * Copies row y into the first width entries of row.
+     */
+    public void getRow(int y, float[] row) {
+        System.arraycopy(data, y * width, row, 0, width);
+    }
+
+    public void setRow(int y, float[] row) {
+        System.arraycopy(row, 0, data, y * width, width);
+    }
+
+    /**
+     * Fills the field from f, in parallel bands of rows.
+     */
+    public void apply(final Functor f) {
+        RowBands.run(height, ForkJoinPool.commonPool(), new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                float[] row = new float[width];
+                for(int y = y1; y < y2; y++) {
+                    f.row(y, row);
+                    setRow(y, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the field converted to RGB through palette.
+     */
+    public RgbMap toMap(final Palette palette) {
+        RgbMap out = new RgbMap(width, height);
+        out.applyParallel(new Map.RowFunctor() {
+            @Override
+            public int value(int x, int y) {
+                return palette.color(get(x, y));
+            }
+
+            @Override
+            public void row(int y, int[] row) {
+                int offset = y * width;
+                for(int x = 0; x < width; x++) {
+                    row[x] = palette.color(data[offset + x]);
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Fills dest with the heights from f coloured through palette, without a
+     * HeightField in between. Bands of rows are filled in parallel, each with
+     * its own row buffers, and monitor sees a checkpoint before every row.
+     */
+    public static void fill(final Map dest, final Functor f,
+            final Palette palette, final GenerationMonitor monitor) {
+        final int w = dest.getWidth();
+        final int h = dest.getHeight();
+        final AtomicInteger done = new AtomicInteger();
+        RowBands.run(h, ForkJoinPool.commonPool(), new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                float[] heights = new float[w];
+                int[] row = new int[w];
+                for(int y = y1; y < y2; y++) {
+                    monitor.checkpoint((double)done.getAndIncrement() / h);
+                    f.row(y, heights);
+                    color(heights, row, w, palette);
+                    dest.setRow(y, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Colours the first width heights into row.
+     */
+    static void color(float[] heights, int[] row, int width,
+            Palette palette) {
+        for(int x = 0; x < width; x++) {
+            row[x] = palette.color(heights[x]);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package buzaan.procgen;
+
+/**
+ * A generator for an unbounded world split into fixed size chunks.
+ * Chunk (cx, cy) covers the world tiles from (cx * chunk width, cy * chunk
+ * height). Every chunk is determined by the seed and its position alone, so
+ * chunks may be generated in any order, on any thread, and neighbouring
+ * chunks still line up.
+ */
+interface IChunkGenerator {
+    int getChunkWidth();
+
+    int getChunkHeight();
+
+    Map generateChunk(long seed, int cx, int cy);
+}
@@ -0,0 +1,9 @@
+package buzaan.procgen;
+
+/**
+ * A terrain generator that can give its heights before they are turned into
+ * colours. Chunks are laid out the same way as for IChunkGenerator.
+ */
+interface IHeightGenerator {
+    HeightField generateHeights(long seed, int cx, int cy);
+}
@@ -1,5 +1,30 @@
 package buzaan.procgen;
 
 interface IMapGenerator {
+    /**
+     * Generates a map from a fresh random seed.
+     */
     Map generate();
+
+    /**
+     * Generates a map determined entirely by seed; the same seed always gives
+     * the same map.
+     */
+    Map generate(long seed);
+
+    /**
+     * As generate(seed), reporting progress to monitor.
+     * @throws java.util.concurrent.CancellationException if monitor cancels
+     * the generation.
+     */
+    Map generate(long seed, GenerationMonitor monitor);
+
+    /**
+     * As generate(seed, monitor), writing the map into dest rather than a
+     * new map. dest must have the generator's dimensions and be able to hold
+     * its tiles; any map can hold WALL and SPACE, but only an RgbMap can hold
+     * terrain.
+     * @return dest.
+     */
+    Map generate(long seed, Map dest, GenerationMonitor monitor);
 }
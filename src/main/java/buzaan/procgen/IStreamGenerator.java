@@ -0,0 +1,34 @@
+package buzaan.procgen;
+
+import java.io.IOException;
+
+/**
+ * A generator that can hand its map over a band of rows at a time instead
+ * of building the whole map. Only one band is held at once, so memory use is
+ * proportional to the width times the band height however tall the map is,
+ * and maps larger than the heap can be written straight out to a file.
+ */
+interface IStreamGenerator {
+    /**
+     * Receives the bands of a streamed map, in order from the top, on the
+     * thread that called stream().
+     */
+    interface RowSink {
+        /**
+         * @param y the first row of the band.
+         * @param rows the number of rows in the band.
+         * @param tiles the band's tiles, row by row; only valid until this
+         * call returns.
+         */
+        void rows(int y, int rows, int[] tiles) throws IOException;
+    }
+
+    /**
+     * Generates the same map as generate(seed) into sink, bandRows rows at
+     * a time.
+     * @throws java.util.concurrent.CancellationException if monitor cancels
+     * the generation.
+     */
+    void stream(long seed, int bandRows, RowSink sink,
+            GenerationMonitor monitor) throws IOException;
+}
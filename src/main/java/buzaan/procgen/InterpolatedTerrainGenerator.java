@@ -1,20 +1,17 @@
 package buzaan.procgen;
 
-import java.util.Random;
+import java.io.IOException;
 
 /**
  *
  * @author buzaan
  */
-public class InterpolatedTerrainGenerator implements IMapGenerator {
+public class InterpolatedTerrainGenerator extends AbstractMapGenerator
+        implements IChunkGenerator, IHeightGenerator, IStreamGenerator {
     private final int mapWidth;
     private final int mapHeight;
     private final InterpolationMethod method;
 
-    private static int tileIntensity(int val) {
-        return (val << 16 | val << 8 | val);
-    }
-
     // This whole bit feels overdesigned...
     public interface Builder {
         void setWidth(int w);
@@ -104,28 +101,210 @@ public class InterpolatedTerrainGenerator implements IMapGenerator {
         return new GradientBuilder(spacing);
     }
 
-    public interface InterpolationMethod extends Map.Functor {
-        void randomizeLattice();
+    public interface InterpolationMethod {
+        /**
+         * Returns the heights for a region of the world whose top left tile
+         * is (x0, y0). The lattice is laid out over world coordinates, so
+         * regions generated separately with the same seed line up.
+         */
+        HeightField.Functor region(long seed, int x0, int y0);
+
+        /**
+         * As region(), for only the first rows rows of the region. Only the
+         * lattice rows those rows need are generated.
+         */
+        HeightField.Functor region(long seed, int x0, int y0, int rows);
+
+        /**
+         * As region(), with heights rounded the way they always have been for
+         * RGB tiles, so maps stay the same as before HeightField existed.
+         */
+        HeightField.Functor tiles(long seed, int x0, int y0, int rows);
+
+        /**
+         * Keeps lattices in cache so regions sharing a lattice don't have to
+         * regenerate it. Null turns caching off.
+         */
+        void setLatticeCache(MapCache cache);
+
+        /**
+         * Takes lattices that aren't cached from pool. Null turns pooling
+         * off.
+         */
+        void setMapPool(MapPool pool);
+
+        /**
+         * Gives back whatever a functor from region() took from the pool,
+         * once it is no longer used.
+         */
+        void release(HeightField.Functor region);
     }
 
     private static abstract class AbstractMethod implements InterpolationMethod {
-        protected final Map lattice;
+        protected final int width;
+        protected final int height;
         protected final int spacing;
-        protected final Random rnd = new Random();
+        private volatile MapCache latticeCache;
+        private volatile MapPool pool;
 
         public AbstractMethod(int width, int height, int spacing) {
-            lattice = new Map((width / spacing) + 1, (height / spacing) + 1);
+            this.width = width;
+            this.height = height;
             this.spacing = spacing;
         }
 
         @Override
-        public void randomizeLattice() {
-            lattice.apply(new Map.Functor() {
+        public void setLatticeCache(MapCache cache) {
+            latticeCache = cache;
+        }
+
+        @Override
+        public void setMapPool(MapPool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * @return the value stored at world lattice point (lx, ly).
+         */
+        protected int latticeValue(long seed, int lx, int ly) {
+            return SeedHash.nextInt(SeedHash.hash(seed, lx, ly), 0xff);
+        }
+
+        /**
+         * @param p pool to take the lattice from if it isn't cached, or null.
+         */
+        private Map lattice(final long seed, final int lx0, final int ly0,
+                final int w, final int h, final MapPool p) {
+            MapCache.Loader loader = new MapCache.Loader() {
                 @Override
-                public int value(int x, int y) {
-                    return rnd.nextInt(0xff);
+                public Map load() {
+                    Map lattice = p != null
+                            ? p.takeRgbMap(w, h)
+                            : new RgbMap(w, h);
+                    int[] row = new int[w];
+                    for(int y = 0; y < h; y++) {
+                        for(int x = 0; x < w; x++) {
+                            row[x] = latticeValue(seed, lx0 + x, ly0 + y);
+                        }
+                        lattice.setRow(y, row);
+                    }
+                    return lattice;
                 }
-            });
+            };
+            MapCache cache = latticeCache;
+            if(cache == null) {
+                return loader.load();
+            }
+            return cache.get(
+                    new MapCache.Key(toString(), seed, lx0, ly0, w, h), loader);
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + spacing + ")";
+        }
+
+        /**
+         * @param lattice lattice covering the region.
+         * @param lx x of the lattice point at or left of the tile.
+         * @param ly y of the lattice point at or above the tile.
+         * @param ix offset of the tile from the lattice point, [0, spacing)
+         * @param iy offset of the tile from the lattice point, [0, spacing)
+         * @param tiles whether to round as RGB tiles always have been.
+         */
+        protected abstract float interpolate(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles);
+
+        /**
+         * Fills row[0, width) with the same values interpolate() would give,
+         * starting at the tile given by lx, ly, ix & iy and moving right.
+         */
+        protected abstract void interpolateRow(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles, float[] row);
+
+        @Override
+        public HeightField.Functor region(long seed, int x0, int y0) {
+            return region(seed, x0, y0, height);
+        }
+
+        @Override
+        public HeightField.Functor region(long seed, int x0, int y0,
+                int rows) {
+            return region(seed, x0, y0, rows, false);
+        }
+
+        @Override
+        public HeightField.Functor tiles(long seed, int x0, int y0,
+                int rows) {
+            return region(seed, x0, y0, rows, true);
+        }
+
+        private Region region(long seed, int x0, int y0, int rows,
+                boolean tiles) {
+            int lx0 = Math.floorDiv(x0, spacing);
+            int ly0 = Math.floorDiv(y0, spacing);
+            int lx1 = Math.floorDiv(x0 + width - 1, spacing) + 1;
+            int ly1 = Math.floorDiv(y0 + rows - 1, spacing) + 1;
+            // Cached lattices are shared, so only uncached ones are pooled.
+            MapPool p = latticeCache == null ? pool : null;
+            Map lattice = lattice(seed, lx0, ly0,
+                    lx1 - lx0 + 1, ly1 - ly0 + 1, p);
+            return new Region(lattice, p, x0, y0, lx0, ly0, tiles);
+        }
+
+        @Override
+        public void release(HeightField.Functor region) {
+            if(region instanceof Region) {
+                Region r = (Region)region;
+                if(r.pool != null) {
+                    r.pool.give(r.lattice);
+                }
+            }
+        }
+
+        private final class Region implements HeightField.Functor {
+            private final Map lattice;
+            private final MapPool pool;
+            private final int x0;
+            private final int y0;
+            private final int lx0;
+            private final int ly0;
+            private final boolean tiles;
+
+            Region(Map lattice, MapPool pool, int x0, int y0,
+                    int lx0, int ly0, boolean tiles) {
+                this.lattice = lattice;
+                this.pool = pool;
+                this.x0 = x0;
+                this.y0 = y0;
+                this.lx0 = lx0;
+                this.ly0 = ly0;
+                this.tiles = tiles;
+            }
+
+            @Override
+            public float value(int x, int y) {
+                // The lattice x & y values will be the floor of our
+                // point divided by the spacing.
+                int gx = x0 + x;
+                int gy = y0 + y;
+                return interpolate(lattice,
+                        Math.floorDiv(gx, spacing) - lx0,
+                        Math.floorDiv(gy, spacing) - ly0,
+                        Math.floorMod(gx, spacing),
+                        Math.floorMod(gy, spacing),
+                        tiles);
+            }
+
+            @Override
+            public void row(int y, float[] row) {
+                int gy = y0 + y;
+                interpolateRow(lattice, 0,
+                        Math.floorDiv(gy, spacing) - ly0,
+                        Math.floorMod(x0, spacing),
+                        Math.floorMod(gy, spacing),
+                        tiles, row);
+            }
         }
     }
 
@@ -134,124 +313,159 @@ public class InterpolatedTerrainGenerator implements IMapGenerator {
             super(width, height, spacing);
         }
 
+        /**
+         * Blends lattice column lx between rows ly and ly + 1.
+         */
+        private int blend(Map lattice, int lx, int ly, int iy) {
+            return lattice.getTile(lx, ly) * (spacing - iy)
+                    + lattice.getTile(lx, ly + 1) * iy;
+        }
+
+        @Override
+        protected float interpolate(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles) {
+            // How far the location is in each region is given by the
+            // "interior" x & y.
+            int left = blend(lattice, lx, ly, iy);
+            int right = blend(lattice, lx + 1, ly, iy);
+            int sum = left * (spacing - ix) + right * ix;
+            return (float)sum / (spacing * spacing);
+        }
+
         @Override
-        public int value(int x, int y) {
-            // The lattice x & y values will be the floor of our map point
-            // divided by the spacing.
-            int lx = x / spacing;
-            int ly = y / spacing;
-
-            // The points themselves, using quasi-array notation.
-            int q00 = lattice.getTile(lx, ly);
-            int q10 = lattice.getTile(lx + 1, ly);
-            int q01 = lattice.getTile(lx, ly + 1);
-            int q11 = lattice.getTile(lx + 1, ly + 1);
-
-            // How far the location is in each region is given by the modulus
-            // of the x & y values and the spacing. "Interior" x & y
-            int ix = x % spacing;
-            int iy = y % spacing;
-            int sum = (q11 * ix * iy)
-                    + (q01 * (spacing - ix) * iy)
-                    + (q10 * ix * (spacing - iy))
-                    + (q00 * (spacing - ix) * (spacing - iy));
-            int out = (int)(sum / (spacing * spacing));
-            return tileIntensity(out);
+        protected void interpolateRow(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles, float[] row) {
+            int right = blend(lattice, lx, ly, iy);
+            for(int x = 0; x < width; lx++, ix = 0) {
+                int left = right;
+                right = blend(lattice, lx + 1, ly, iy);
+                for(; ix < spacing && x < width; ix++, x++) {
+                    int sum = left * (spacing - ix) + right * ix;
+                    row[x] = (float)sum / (spacing * spacing);
+                }
+            }
         }
     }
 
     public static class Bicubic extends AbstractMethod {
+        private final SmoothstepTable table;
+
         public Bicubic(int width, int height, int spacing) {
             super(width, height, spacing);
+            table = new SmoothstepTable(spacing);
         }
 
-        private double s(double x) {
-            // pcgbook mentions this function is a common choice
-            return (-2 * Math.pow(x, 3) + 3 * Math.pow(x, 2));
+        private double blend(Map lattice, int lx, int ly, int iy) {
+            return lattice.getTile(lx, ly) * table.fall[iy]
+                    + lattice.getTile(lx, ly + 1) * table.rise[iy];
         }
 
         @Override
-        public int value(int x, int y) {
-            int lx = x / spacing;
-            int ly = y / spacing;
-
-            int ix = x % spacing;
-            int iy = y % spacing;
-
-            int q00 = lattice.getTile(lx, ly);
-            int q10 = lattice.getTile(lx + 1, ly);
-            int q01 = lattice.getTile(lx, ly + 1);
-            int q11 = lattice.getTile(lx + 1, ly + 1);
-
-            double px = (double)ix / spacing;
-            double py = (double)iy / spacing;
-            double v = ( q00 * s(1.0 - px) * s(1.0 - py)
-                    + q10 * s(px) * s(1.0 - py)
-                    + q01 * s(1.0 - px) * s(py)
-                    + q11 * s(px) * s(py));
-            return tileIntensity((int)v);
+        protected float interpolate(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles) {
+            return (float)(blend(lattice, lx, ly, iy) * table.fall[ix]
+                    + blend(lattice, lx + 1, ly, iy) * table.rise[ix]);
+        }
+
+        @Override
+        protected void interpolateRow(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles, float[] row) {
+            double right = blend(lattice, lx, ly, iy);
+            for(int x = 0; x < width; lx++, ix = 0) {
+                double left = right;
+                right = blend(lattice, lx + 1, ly, iy);
+                for(; ix < spacing && x < width; ix++, x++) {
+                    row[x] = (float)(left * table.fall[ix]
+                            + right * table.rise[ix]);
+                }
+            }
         }
     }
 
-    public static class Gradient implements InterpolationMethod {
-        // xs and ys stores the x & y slope at each point in the lattice.
-        private final int[] xs;
-        private final int[] ys;
-        private final int lWidth;
-        private final int spacing;
-        private final Random rnd = new Random();
+    public static class Gradient extends AbstractMethod {
+        private final SmoothstepTable table;
 
         public Gradient(int width, int height, int spacing) {
-            int x = (width / spacing) + 1;
-            int y = (height / spacing) + 1;
-            lWidth = y;
-            xs = new int[x * y];
-            ys = new int[x * y];
-            this.spacing = spacing;
+            super(width, height, spacing);
+            table = new SmoothstepTable(spacing);
         }
 
+        /**
+         * Each lattice point stores its x & y slope packed as two shorts.
+         */
         @Override
-        public void randomizeLattice() {
-            for(int i = 0; i < xs.length; i++) {
-                // Initializes each component with a random value between
-                // [-spacing, spacing)
-                xs[i] = (rnd.nextInt(spacing * 2) - spacing);
-                ys[i] = (rnd.nextInt(spacing * 2) - spacing);
-            }
+        protected int latticeValue(long seed, int lx, int ly) {
+            // Initializes each component with a random value between
+            // [-spacing, spacing)
+            long hash = SeedHash.hash(seed, lx, ly);
+            int x = SeedHash.nextInt(hash, spacing * 2) - spacing;
+            int y = SeedHash.nextInt(hash << 32, spacing * 2) - spacing;
+            return x << 16 | (y & 0xffff);
+        }
+
+        private static int xSlope(Map lattice, int lx, int ly) {
+            return lattice.getTile(lx, ly) >> 16;
+        }
+
+        private static int ySlope(Map lattice, int lx, int ly) {
+            return (short)lattice.getTile(lx, ly);
+        }
+
+        /*
+         * The corner values are dot products of each lattice point's slope
+         * with the vector to the tile. Blending a lattice column vertically
+         * leaves a value linear in the x component of that vector,
+         * a * vx + b; xWeight() gives a and offset() gives b.
+         */
+        private double xWeight(Map lattice, int lx, int ly, int iy) {
+            return xSlope(lattice, lx, ly) * table.fall[iy]
+                    + xSlope(lattice, lx, ly + 1) * table.rise[iy];
+        }
+
+        private double offset(Map lattice, int lx, int ly, int iy) {
+            return iy * ySlope(lattice, lx, ly) * table.fall[iy]
+                    + (spacing - iy) * ySlope(lattice, lx, ly + 1)
+                            * table.rise[iy];
         }
 
-        private static double s(double x) {
-            return (-2 * Math.pow(x, 3) + 3 * Math.pow(x, 2));
+        /*
+         * Since we may have negative heights due to the negative slopes,
+         * terrain defaults to being in the middle of the domain we use.
+         * Tiles truncate v before adding the middle, which rounds negative
+         * heights up rather than down.
+         */
+        private static float height(double v, boolean tiles) {
+            return tiles ? (0xff / 2) + (int)v : (float)((0xff / 2) + v);
         }
 
-        private int dotProduct(int lx, int ly, int vx, int vy) {
-            int x = xs[lx + ly * lWidth];
-            int y = ys[lx + ly * lWidth];
-            return vx * x + vy * y;
+        @Override
+        protected float interpolate(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles) {
+            double left = ix * xWeight(lattice, lx, ly, iy)
+                    + offset(lattice, lx, ly, iy);
+            double right = (spacing - ix) * xWeight(lattice, lx + 1, ly, iy)
+                    + offset(lattice, lx + 1, ly, iy);
+            return height(left * table.fall[ix] + right * table.rise[ix],
+                    tiles);
         }
 
         @Override
-        public int value(int x, int y) {
-            int lx = x / spacing;
-            int ly = y / spacing;
-            int ix = x % spacing;
-            int iy = y % spacing;
-
-            int q00 = dotProduct(lx, ly, ix, iy);
-            int q10 = dotProduct(lx + 1, ly, (spacing - ix), iy);
-            int q01 = dotProduct(lx, ly + 1, ix, (spacing - iy));
-            int q11 = dotProduct(lx + 1, ly + 1, (spacing - ix), (spacing - iy));
-            // Perform bicubic interpolation on these points
-            double px = (double)ix / spacing;
-            double py = (double)iy / spacing;
-            double v = ( q00 * s(1.0 - px) * s(1.0 - py)
-                    + q10 * s(px) * s(1.0 - py)
-                    + q01 * s(1.0 - px) * s(py)
-                    + q11 * s(px) * s(py));
-
-            // Since we may have negative heights due to the negative slopes,
-            //terrain defaults to being in the middle of the domain we use.
-            return tileIntensity((0xff / 2) + (int)v);
+        protected void interpolateRow(Map lattice,
+                int lx, int ly, int ix, int iy, boolean tiles, float[] row) {
+            double ra = xWeight(lattice, lx, ly, iy);
+            double rb = offset(lattice, lx, ly, iy);
+            for(int x = 0; x < width; lx++, ix = 0) {
+                double la = ra;
+                double lb = rb;
+                ra = xWeight(lattice, lx + 1, ly, iy);
+                rb = offset(lattice, lx + 1, ly, iy);
+                for(; ix < spacing && x < width; ix++, x++) {
+                    double left = ix * la + lb;
+                    double right = (spacing - ix) * ra + rb;
+                    row[x] = height(left * table.fall[ix]
+                            + right * table.rise[ix], tiles);
+                }
+            }
         }
     }
 
@@ -264,11 +478,88 @@ public class InterpolatedTerrainGenerator implements IMapGenerator {
     }
 
     @Override
-    public Map generate() {
-        Map out = new Map(mapWidth, mapHeight);
-        method.randomizeLattice();
-        out.apply(method);
+    public Map generate(long seed, GenerationMonitor monitor) {
+        return generateChunk(seed, 0, 0, takeRgbMap(mapWidth, mapHeight),
+                monitor);
+    }
+
+    @Override
+    public Map generate(long seed, Map dest, GenerationMonitor monitor) {
+        return generateChunk(seed, 0, 0, dest, monitor);
+    }
+
+    public void setLatticeCache(MapCache cache) {
+        method.setLatticeCache(cache);
+    }
+
+    @Override
+    public void setMapPool(MapPool pool) {
+        super.setMapPool(pool);
+        method.setMapPool(pool);
+    }
+
+    @Override
+    public int getChunkWidth() {
+        return mapWidth;
+    }
+
+    @Override
+    public int getChunkHeight() {
+        return mapHeight;
+    }
+
+    @Override
+    public Map generateChunk(long seed, int cx, int cy) {
+        return generateChunk(seed, cx, cy, takeRgbMap(mapWidth, mapHeight),
+                GenerationMonitor.NONE);
+    }
+
+    private Map generateChunk(long seed, int cx, int cy, Map dest,
+            GenerationMonitor monitor) {
+        checkDest(dest, mapWidth, mapHeight);
+        HeightField.Functor region =
+                method.tiles(seed, cx * mapWidth, cy * mapHeight, mapHeight);
+        try {
+            HeightField.fill(dest, region, HeightField.GREYSCALE, monitor);
+        } finally {
+            method.release(region);
+        }
+        return dest;
+    }
+
+    @Override
+    public void stream(final long seed, int bandRows, RowSink sink,
+            GenerationMonitor monitor) throws IOException {
+        stream(mapWidth, mapHeight, bandRows, new Bands() {
+            @Override
+            public HeightField.Functor open(int y, int rows) {
+                return method.tiles(seed, 0, y, rows);
+            }
+
+            @Override
+            public void close(HeightField.Functor band) {
+                method.release(band);
+            }
+        }, sink, monitor);
+    }
+
+    @Override
+    public HeightField generateHeights(long seed, int cx, int cy) {
+        HeightField out = new HeightField(mapWidth, mapHeight);
+        HeightField.Functor region =
+                method.region(seed, cx * mapWidth, cy * mapHeight);
+        try {
+            out.apply(region);
+        } finally {
+            method.release(region);
+        }
         return out;
     }
 
+    @Override
+    public String toString() {
+        return "InterpolatedTerrainGenerator(" + mapWidth + "x" + mapHeight
+                + ", " + method + ")";
+    }
+
 }
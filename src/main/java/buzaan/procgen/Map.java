@@ -1,16 +1,23 @@
 package buzaan.procgen;
 
-public class Map {
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A rectangular grid of tiles.
+ * Tiles are RGB values; binary maps only ever hold WALL or SPACE. Storage is
+ * left to the subclasses: RgbMap keeps a full int per tile and BitMap packs
+ * WALL/SPACE tiles into a single bit each.
+ */
+public abstract class Map {
     private final int width;
     private final int height;
-    private final int[] data;
     public static final int WALL = 0x000000;
     public static final int SPACE = 0xffffff;
 
-    public Map(int width, int height) {
+    protected Map(int width, int height) {
         this.width = width;
         this.height = height;
-        data = new int[width * height];
     }
 
     public int getWidth() {
@@ -21,33 +28,166 @@ public class Map {
         return height;
     }
 
-    public int getTile(int x, int y) {
-        return data[x + y * width];
+    public abstract int getTile(int x, int y);
+
+    public abstract void setTile(int x, int y, int value);
+
+    /**
+     * Copies row y into the first width entries of row. Subclasses override
+     * the row methods with bulk copies, so loops over a whole map should go
+     * a row at a time rather than a tile at a time.
+     */
+    public void getRow(int y, int[] row) {
+        for(int x = 0; x < width; x++) {
+            row[x] = getTile(x, y);
+        }
+    }
+
+    /**
+     * Sets row y to the first width values of row.
+     */
+    public void setRow(int y, int[] row) {
+        for(int x = 0; x < width; x++) {
+            setTile(x, y, row[x]);
+        }
     }
 
-    public void setTile(int x, int y, int value) {
-        data[x + y * width] = value;
+    /**
+     * Sets tiles [x1, x2) of row y to c.
+     */
+    public void fillSpan(int y, int x1, int x2, int c) {
+        for(int x = x1; x < x2; x++) {
+            setTile(x, y, c);
+        }
     }
 
+    /**
+     * Sets the tiles from (x, y) to (x + w, y + h) inclusive to c.
+     */
     public void fillRegion(int x, int y, int w, int h, int c) {
-        for(int i = x; i <= x + w; i++) {
-            for(int j = y; j <= y + h; j++) {
-                setTile(i, j, c);
+        for(int j = y; j <= y + h; j++) {
+            fillSpan(j, x, x + w + 1, c);
+        }
+    }
+
+    /**
+     * Receives the tiles of a map in row-major order.
+     */
+    public static interface TileVisitor {
+        /**
+         * @param i the row-major index of the tile, y * width + x.
+         */
+        void visit(long i, int x, int y, int value);
+    }
+
+    /**
+     * Visits every tile in row-major order, reading a row at a time.
+     */
+    public void forEach(TileVisitor v) {
+        int[] row = new int[width];
+        long i = 0;
+        for(int y = 0; y < height; y++) {
+            getRow(y, row);
+            for(int x = 0; x < width; x++, i++) {
+                v.visit(i, x, y, row[x]);
             }
         }
     }
 
+    /**
+     * @return the approximate number of bytes used to store the tiles.
+     */
+    public abstract long byteSize();
+
+    /**
+     * @return the map in RGB form. May be this map itself, or a converted
+     * copy that is only valid until this map is next modified.
+     */
+    public abstract RgbMap toRgb();
+
+    /**
+     * Copies every tile of this map into dest, which must have the same
+     * dimensions. Subclasses override this with bulk copies where the
+     * storage allows it.
+     */
+    protected void copyTo(Map dest) {
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++) {
+            getRow(y, row);
+            dest.setRow(y, row);
+        }
+    }
+
     public static void copy(Map src, Map dest) {
-        System.arraycopy(src.data, 0, dest.data, 0, src.data.length);
+        src.copyTo(dest);
     }
 
     public static interface Functor {
         int value(int x, int y);
     }
 
+    /**
+     * A Functor that is safe to call from several threads at once and whose
+     * value depends only on its arguments, so it may be applied to tiles in
+     * any order. It may read the tile it is about to replace, but no other
+     * tile of the map being written.
+     */
+    public static interface PureFunctor extends Functor {
+    }
+
+    /**
+     * A PureFunctor that can also produce a whole row at a time, letting it
+     * reuse work between neighbouring tiles. apply() uses row() whenever it
+     * can; both must give the same values.
+     */
+    public static interface RowFunctor extends PureFunctor {
+        /**
+         * Fills row[0, width) with the values for row y.
+         */
+        void row(int y, int[] row);
+    }
+
     public void apply(Functor f) {
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
+        applyRows(f, 0, height);
+    }
+
+    /**
+     * Applies f using the common ForkJoinPool.
+     * @see #apply(Functor, Executor)
+     */
+    public void applyParallel(Functor f) {
+        apply(f, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Applies f with bands of rows run on executor. Functors that aren't
+     * PureFunctors are applied serially on the calling thread instead. Either
+     * way the result is the same as apply(f).
+     */
+    public void apply(final Functor f, Executor executor) {
+        if(!(f instanceof PureFunctor)) {
+            apply(f);
+            return;
+        }
+        RowBands.run(height, executor, new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                applyRows(f, y1, y2);
+            }
+        });
+    }
+
+    private void applyRows(Functor f, int y1, int y2) {
+        if(f instanceof RowFunctor) {
+            int[] row = new int[width];
+            for(int y = y1; y < y2; y++) {
+                ((RowFunctor)f).row(y, row);
+                setRow(y, row);
+            }
+            return;
+        }
+        for(int y = y1; y < y2; y++) {
+            for(int x = 0; x < width; x++) {
                 setTile(x, y, f.value(x, y));
             }
         }
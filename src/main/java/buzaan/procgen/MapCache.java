@@ -0,0 +1,260 @@
+package buzaan.procgen;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A least recently used cache of generated maps, bounded by size in bytes.
+ * Maps are keyed by the configuration of whatever generated them, the seed
+ * and the region they cover. Concurrent requests for a key that is still
+ * being generated wait for that one generation rather than starting their
+ * own.
+ *
+ * With soft references enabled, cached maps may also be reclaimed by the
+ * garbage collector before the byte budget is reached.
+ *
+ * Cached maps are shared, so callers must not modify them.
+ * @author buzaan
+ */
+public class MapCache {
+    private final long maxBytes;
+    private final boolean soft;
+    private final LinkedHashMap<Key, Entry> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<Key, FutureTask<Map>> pending = new HashMap<>();
+    private final ReferenceQueue<Map> collected = new ReferenceQueue<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public interface Loader {
+        Map load();
+    }
+
+    public static final class Key {
+        private final String config;
+        private final long seed;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+
+        /**
+         * @param config description of the generator settings.
+         * @param seed seed the map was generated from.
+         * @param x left of the region covered.
+         * @param y top of the region covered.
+         */
+        public Key(String config, long seed, int x, int y,
+                int width, int height) {
+            this.config = config;
+            this.seed = seed;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return seed == k.seed && x == k.x && y == k.y
+                    && width == k.width && height == k.height
+                    && config.equals(k.config);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = config.hashCode();
+            h = h * 31 + (int)(seed ^ (seed >>> 32));
+            h = h * 31 + x;
+            h = h * 31 + y;
+            h = h * 31 + width;
+            return h * 31 + height;
+        }
+
+        @Override
+        public String toString() {
+            return config + "@" + seed + "(" + x + ", " + y + ", "
+                    + width + "x" + height + ")";
+        }
+    }
+
+    private static final class Entry {
+        private final Map strong;
+        private final Ref ref;
+        private final long size;
+
+        Entry(Map map, Ref ref) {
+            strong = ref == null ? map : null;
+            this.ref = ref;
+            size = map.byteSize();
+        }
+
+        Map get() {
+            return ref == null ? strong : ref.get();
+        }
+    }
+
+    private static final class Ref extends SoftReference<Map> {
+        private final Key key;
+
+        Ref(Key key, Map map, ReferenceQueue<Map> queue) {
+            super(map, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * @param maxBytes total byte size of the maps to keep.
+     * @param soft whether to hold maps through soft references.
+     */
+    public MapCache(long maxBytes, boolean soft) {
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("Negative cache size.");
+        }
+        this.maxBytes = maxBytes;
+        this.soft = soft;
+    }
+
+    /**
+     * Returns the map cached for key, using loader to generate it first if
+     * it isn't cached yet.
+     */
+    public Map get(Key key, final Loader loader) {
+        FutureTask<Map> task;
+        boolean owner = false;
+        synchronized(this) {
+            purgeCollected();
+            Entry e = entries.get(key);
+            Map m = e == null ? null : e.get();
+            if(m != null) {
+                hits++;
+                return m;
+            }
+            task = pending.get(key);
+            if(task == null) {
+                misses++;
+                task = new FutureTask<>(new Callable<Map>() {
+                    @Override
+                    public Map call() {
+                        return loader.load();
+                    }
+                });
+                pending.put(key, task);
+                owner = true;
+            } else {
+                hits++;
+            }
+        }
+
+        if(!owner) {
+            return await(task);
+        }
+        task.run();
+        try {
+            Map m = await(task);
+            put(key, m);
+            return m;
+        } finally {
+            // Only once the map is in place, so nobody generates it twice.
+            synchronized(this) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    private static Map await(FutureTask<Map> task) {
+        try {
+            return task.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted waiting for map.");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private synchronized void put(Key key, Map map) {
+        Entry e = new Entry(map, soft ? new Ref(key, map, collected) : null);
+        if(e.size > maxBytes) {
+            // Would only evict everything else and then itself.
+            return;
+        }
+        Entry old = entries.put(key, e);
+        if(old != null) {
+            bytes -= old.size;
+        }
+        bytes += e.size;
+        Iterator<Entry> it = entries.values().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            Entry victim = it.next();
+            it.remove();
+            bytes -= victim.size;
+            evictions++;
+        }
+    }
+
+    private void purgeCollected() {
+        Reference<? extends Map> r;
+        while((r = collected.poll()) != null) {
+            Key key = ((Ref)r).key;
+            Entry e = entries.get(key);
+            if(e != null && e.ref == r) {
+                entries.remove(key);
+                bytes -= e.size;
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return maps dropped for space or reclaimed by the garbage collector.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getBytes() {
+        purgeCollected();
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MapCache(" + bytes + "/" + maxBytes + " bytes, "
+                + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions)";
+    }
+}
@@ -0,0 +1,372 @@
+package buzaan.procgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes maps in a compact binary format.
+ * A file holds one map along with the seed and a description of the
+ * generator configuration that produced it. Everything is little endian:
+ *
+ * <pre>
+ * int    magic "PGMP"
+ * short  format version
+ * byte   payload kind, RGB or BITS
+ * byte   reserved
+ * int    width
+ * int    height
+ * long   seed
+ * short  config length, followed by the config in UTF-8
+ *        zero padding to a multiple of 8 bytes
+ *        payload
+ * </pre>
+ *
+ * RGB payloads hold an int per tile, row by row. BITS payloads hold maps of
+ * WALL and SPACE tiles in BitMap's layout: each row is a whole number of
+ * longs, with a set bit for SPACE.
+ *
+ * Opening a file maps it into memory rather than reading it, so even very
+ * large maps can be opened without copying them onto the heap; tiles are
+ * read straight out of the mapping.
+ * @author buzaan
+ */
+public final class MapFile {
+    private static final int MAGIC = 0x504d4750;
+    static final int VERSION = 1;
+    private static final int RGB = 0;
+    private static final int BITS = 1;
+    private static final int HEADER_SIZE = 26;
+    // Largest mapping made at once; files are mapped in bands of rows.
+    private static final int MAX_SEGMENT = 1 << 30;
+
+    private final String config;
+    private final long seed;
+    private final Map map;
+
+    private MapFile(String config, long seed, Map map) {
+        this.config = config;
+        this.seed = seed;
+        this.map = map;
+    }
+
+    public String getConfig() {
+        return config;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return a read only view of the map, backed by the mapped file.
+     */
+    public Map getMap() {
+        return map;
+    }
+
+    /**
+     * Writes map to file, packing it into bits if it is a BitMap or a binary
+     * OffHeapMap.
+     */
+    public static void write(File file, Map map, String config, long seed)
+            throws IOException {
+        byte[] configBytes = configBytes(config);
+        boolean bits = map instanceof BitMap || (map instanceof OffHeapMap
+                && ((OffHeapMap)map).isBinary());
+        int width = map.getWidth();
+        int height = map.getHeight();
+
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            putHeader(channel, buf, bits, width, height, seed, configBytes);
+
+            if(map instanceof BitMap) {
+                for(long word : ((BitMap)map).words()) {
+                    put(channel, buf, 8);
+                    buf.putLong(word);
+                }
+            } else if(bits) {
+                OffHeapMap m = (OffHeapMap)map;
+                for(int y = 0; y < height; y++) {
+                    for(int k = 0; k < m.wordsPerRow(); k++) {
+                        put(channel, buf, 8);
+                        buf.putLong(m.getWord(y, k));
+                    }
+                }
+            } else {
+                int[] row = new int[width];
+                for(int y = 0; y < height; y++) {
+                    map.getRow(y, row);
+                    for(int x = 0; x < width; x++) {
+                        put(channel, buf, 4);
+                        buf.putInt(row[x]);
+                    }
+                }
+            }
+            flush(channel, buf);
+        }
+    }
+
+    /**
+     * Writes the width by height RGB map gen streams for seed to file, a
+     * band of bandRows rows at a time, so the whole map is never in memory.
+     */
+    static void write(File file, IStreamGenerator gen, final int width,
+            int height, int bandRows, String config, long seed,
+            GenerationMonitor monitor) throws IOException {
+        byte[] configBytes = configBytes(config);
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 16)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            final FileChannel channel = raf.getChannel();
+            putHeader(channel, buf, false, width, height, seed, configBytes);
+            final int[] next = {0};
+            gen.stream(seed, bandRows, new IStreamGenerator.RowSink() {
+                @Override
+                public void rows(int y, int rows, int[] tiles)
+                        throws IOException {
+                    if(y != next[0]) {
+                        throw new IllegalStateException("Expected row "
+                                + next[0] + ", not " + y + ".");
+                    }
+                    next[0] += rows;
+                    for(int i = 0; i < rows * width; i++) {
+                        put(channel, buf, 4);
+                        buf.putInt(tiles[i]);
+                    }
+                }
+            }, monitor);
+            if(next[0] != height) {
+                throw new IllegalStateException("Only " + next[0] + " of "
+                        + height + " rows were generated.");
+            }
+            flush(channel, buf);
+        }
+    }
+
+    private static byte[] configBytes(String config) {
+        byte[] configBytes = config.getBytes(StandardCharsets.UTF_8);
+        if(configBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Config is too long.");
+        }
+        return configBytes;
+    }
+
+    /**
+     * Puts the header and padded config into buf.
+     */
+    private static void putHeader(FileChannel channel, ByteBuffer buf,
+            boolean bits, int width, int height, long seed,
+            byte[] configBytes) throws IOException {
+        buf.putInt(MAGIC)
+                .putShort((short)VERSION)
+                .put((byte)(bits ? BITS : RGB))
+                .put((byte)0)
+                .putInt(width)
+                .putInt(height)
+                .putLong(seed)
+                .putShort((short)configBytes.length);
+        int header = HEADER_SIZE + configBytes.length;
+        for(int i = 0; i < configBytes.length; i++) {
+            put(channel, buf, 1);
+            buf.put(configBytes[i]);
+        }
+        for(int i = header; i < align(header); i++) {
+            put(channel, buf, 1);
+            buf.put((byte)0);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf)
+            throws IOException {
+        buf.flip();
+        while(buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Makes room for n more bytes in buf, writing it out if it is full.
+     */
+    private static void put(FileChannel channel, ByteBuffer buf, int n)
+            throws IOException {
+        if(buf.remaining() < n) {
+            buf.flip();
+            while(buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            buf.clear();
+        }
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+
+    /**
+     * Opens a file written by write(), mapping it into memory.
+     */
+    public static MapFile open(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, head, 0);
+            if(head.getInt() != MAGIC) {
+                throw new IOException(file + " is not a map file.");
+            }
+            int version = head.getShort() & 0xffff;
+            if(version != VERSION) {
+                throw new IOException(file + " has unsupported version "
+                        + version + ".");
+            }
+            int kind = head.get();
+            head.get();
+            int width = head.getInt();
+            int height = head.getInt();
+            long seed = head.getLong();
+            int configLength = head.getShort() & 0xffff;
+            if(width <= 0 || height <= 0 || (kind != RGB && kind != BITS)) {
+                throw new IOException(file + " has a corrupt header.");
+            }
+
+            ByteBuffer configBytes = ByteBuffer.allocate(configLength);
+            readFully(channel, configBytes, HEADER_SIZE);
+            String config = new String(configBytes.array(),
+                    StandardCharsets.UTF_8);
+
+            long rowBytes = kind == BITS
+                    ? 8L * ((width + 63) >>> 6)
+                    : 4L * width;
+            long payload = align(HEADER_SIZE + configLength);
+            if(rowBytes > MAX_SEGMENT) {
+                throw new IOException(file + " has rows too wide to map.");
+            }
+            if(size < payload + rowBytes * height) {
+                throw new IOException(file + " is truncated.");
+            }
+            int rowsPerSegment = (int)Math.min(height, MAX_SEGMENT / rowBytes);
+            ByteBuffer[] segments =
+                    new ByteBuffer[(height + rowsPerSegment - 1) / rowsPerSegment];
+            for(int i = 0; i < segments.length; i++) {
+                int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        payload + rowBytes * i * rowsPerSegment,
+                        rowBytes * rows)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // The mappings stay valid once the channel is closed.
+            return new MapFile(config, seed, new MappedMap(width, height,
+                    kind == BITS, segments, rowsPerSegment, (int)rowBytes));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+            long position) throws IOException {
+        while(buf.hasRemaining()) {
+            if(channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Map file is truncated.");
+            }
+        }
+        buf.flip();
+    }
+
+    /**
+     * A read only map reading its tiles from mapped segments of a file.
+     */
+    private static final class MappedMap extends Map {
+        private final boolean bits;
+        private final ByteBuffer[] segments;
+        private final int rowsPerSegment;
+        private final int rowBytes;
+
+        MappedMap(int width, int height, boolean bits, ByteBuffer[] segments,
+                int rowsPerSegment, int rowBytes) {
+            super(width, height);
+            this.bits = bits;
+            this.segments = segments;
+            this.rowsPerSegment = rowsPerSegment;
+            this.rowBytes = rowBytes;
+        }
+
+        @Override
+        public int getTile(int x, int y) {
+            if(x < 0 || x >= getWidth()) {
+                throw new IndexOutOfBoundsException("x = " + x);
+            }
+            ByteBuffer seg = segments[y / rowsPerSegment];
+            int row = (y % rowsPerSegment) * rowBytes;
+            if(bits) {
+                long word = seg.getLong(row + (x >>> 6) * 8);
+                return (word >>> x & 1L) != 0 ? SPACE : WALL;
+            }
+            return seg.getInt(row + x * 4);
+        }
+
+        @Override
+        public void getRow(int y, int[] row) {
+            ByteBuffer seg = segments[y / rowsPerSegment];
+            int offset = (y % rowsPerSegment) * rowBytes;
+            int w = getWidth();
+            if(bits) {
+                for(int k = 0; k * 64 < w; k++) {
+                    long word = seg.getLong(offset + k * 8);
+                    int end = Math.min(w, (k + 1) * 64);
+                    for(int x = k * 64; x < end; x++) {
+                        row[x] = (word >>> x & 1L) != 0 ? SPACE : WALL;
+                    }
+                }
+            } else {
+                for(int x = 0; x < w; x++) {
+                    row[x] = seg.getInt(offset + x * 4);
+                }
+            }
+        }
+
+        @Override
+        public void setTile(int x, int y, int value) {
+            throw new UnsupportedOperationException(
+                    "Mapped maps are read only.");
+        }
+
+        @Override
+        public long byteSize() {
+            return (long)rowBytes * getHeight();
+        }
+
+        @Override
+        public RgbMap toRgb() {
+            RgbMap out = new RgbMap(getWidth(), getHeight());
+            copyTo(out);
+            return out;
+        }
+
+        @Override
+        protected void copyTo(Map dest) {
+            if(bits && dest instanceof BitMap) {
+                BitMap b = (BitMap)dest;
+                long[] words = b.words();
+                int wordsPerRow = b.wordsPerRow();
+                for(int y = 0; y < getHeight(); y++) {
+                    ByteBuffer seg = segments[y / rowsPerSegment]
+                            .duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                    seg.position((y % rowsPerSegment) * rowBytes);
+                    seg.asLongBuffer().get(words, y * wordsPerRow, wordsPerRow);
+                }
+                b.modified();
+            } else {
+                super.copyTo(dest);
+            }
+        }
+    }
+}
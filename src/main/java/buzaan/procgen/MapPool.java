@@ -0,0 +1,149 @@
+package buzaan.procgen;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Holds on to maps that are no longer needed so they can be reused rather
+ * than allocated again. Maps are kept by type and dimensions, up to a limit
+ * for each.
+ *
+ * The pool is split into stripes, each with its own lock, and a thread
+ * always uses the same stripe. Threads that take and give back maps in a
+ * loop keep getting their own maps back without contending with the rest.
+ *
+ * A map taken from the pool holds whatever was last written to it, so
+ * callers must overwrite every tile before reading any.
+ * @author buzaan
+ */
+public class MapPool {
+    private final int maxPerKey;
+    private final Stripe[] stripes;
+
+    private static final class Stripe {
+        private final HashMap<Key, ArrayDeque<Map>> free = new HashMap<>();
+    }
+
+    private static final class Key {
+        private final boolean bits;
+        private final int width;
+        private final int height;
+
+        Key(boolean bits, int width, int height) {
+            this.bits = bits;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return bits == k.bits && width == k.width && height == k.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 2 + (bits ? 1 : 0);
+        }
+    }
+
+    /**
+     * A pool with a stripe for each processor.
+     * @param maxPerKey most maps to keep of any one type and size, per
+     * stripe.
+     */
+    public MapPool(int maxPerKey) {
+        this(maxPerKey, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MapPool(int maxPerKey, int stripes) {
+        if(maxPerKey < 0 || stripes <= 0) {
+            throw new IllegalArgumentException("Negative pool size.");
+        }
+        this.maxPerKey = maxPerKey;
+        // A power of two, so a stripe can be picked with a mask.
+        int n = Integer.highestOneBit(stripes);
+        this.stripes = new Stripe[n < stripes ? n * 2 : n];
+        for(int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe() {
+        long id = Thread.currentThread().getId();
+        return stripes[(int)SeedHash.mix(id) & (stripes.length - 1)];
+    }
+
+    public BitMap takeBitMap(int width, int height) {
+        Map m = poll(new Key(true, width, height));
+        return m != null ? (BitMap)m : new BitMap(width, height);
+    }
+
+    public RgbMap takeRgbMap(int width, int height) {
+        Map m = poll(new Key(false, width, height));
+        return m != null ? (RgbMap)m : new RgbMap(width, height);
+    }
+
+    /**
+     * @return a map of the same type and dimensions as m.
+     */
+    public Map takeLike(Map m) {
+        if(m instanceof BitMap) {
+            return takeBitMap(m.getWidth(), m.getHeight());
+        }
+        return takeRgbMap(m.getWidth(), m.getHeight());
+    }
+
+    /**
+     * Returns m to the pool. The caller must not use it afterwards.
+     */
+    public void give(Map m) {
+        Key key = keyOf(m);
+        if(key == null) {
+            return;
+        }
+        Stripe s = stripe();
+        synchronized(s) {
+            ArrayDeque<Map> maps = s.free.get(key);
+            if(maps == null) {
+                maps = new ArrayDeque<>();
+                s.free.put(key, maps);
+            }
+            if(maps.size() < maxPerKey) {
+                maps.push(m);
+            }
+        }
+    }
+
+    private Map poll(Key key) {
+        Stripe s = stripe();
+        synchronized(s) {
+            ArrayDeque<Map> maps = s.free.get(key);
+            return maps == null ? null : maps.poll();
+        }
+    }
+
+    /**
+     * @return the key m is pooled under, or null for maps that can't be
+     * pooled.
+     */
+    private static Key keyOf(Map m) {
+        if(m instanceof BitMap) {
+            return new Key(true, m.getWidth(), m.getHeight());
+        } else if(m instanceof RgbMap) {
+            return new Key(false, m.getWidth(), m.getHeight());
+        }
+        return null;
+    }
+
+    public void clear() {
+        for(Stripe s : stripes) {
+            synchronized(s) {
+                s.free.clear();
+            }
+        }
+    }
+}
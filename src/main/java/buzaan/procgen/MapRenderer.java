@@ -0,0 +1,87 @@
+package buzaan.procgen;
+
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Draws maps onto a canvas through a WritableImage.
+ * Each canvas pixel shows the tile under it, so a small map is scaled up
+ * into blocks (CELL_SIZE wide at the default size) and a large one is
+ * sampled down to fit. Pixels are written to the image in bulk rather than
+ * filling a rectangle per tile, and a changed region of a map can be redrawn
+ * without touching the rest.
+ * @author buzaan
+ */
+class MapRenderer {
+    private final Canvas canvas;
+    private final int width;
+    private final int height;
+    private final WritableImage image;
+    private final int[] pixels;
+
+    MapRenderer(Canvas canvas) {
+        this.canvas = canvas;
+        width = (int)canvas.getWidth();
+        height = (int)canvas.getHeight();
+        image = new WritableImage(width, height);
+        pixels = new int[width * height];
+    }
+
+    void render(Map map) {
+        renderRegion(map, 0, 0, map.getWidth(), map.getHeight());
+    }
+
+    /**
+     * Redraws the w by h tiles of map starting at tile (x, y).
+     */
+    void renderRegion(Map map, int x, int y, int w, int h) {
+        int mw = map.getWidth();
+        int mh = map.getHeight();
+        // Pixels whose tile lies within the region.
+        int px1 = firstPixel(x, mw, width);
+        int px2 = firstPixel(x + w, mw, width);
+        int py1 = firstPixel(y, mh, height);
+        int py2 = firstPixel(y + h, mh, height);
+        if(px1 >= px2 || py1 >= py2) {
+            return;
+        }
+
+        int[] tileX = new int[px2 - px1];
+        for(int px = px1; px < px2; px++) {
+            tileX[px - px1] = (int)((long)px * mw / width);
+        }
+        int[] row = new int[mw];
+        int rowY = -1;
+        for(int py = py1; py < py2; py++) {
+            int ty = (int)((long)py * mh / height);
+            // Scaled up maps show each row of tiles on several pixel rows.
+            if(ty != rowY) {
+                map.getRow(ty, row);
+                rowY = ty;
+            }
+            int offset = py * width;
+            for(int px = px1; px < px2; px++) {
+                pixels[offset + px] = 0xff000000 | row[tileX[px - px1]];
+            }
+        }
+
+        PixelWriter writer = image.getPixelWriter();
+        writer.setPixels(px1, py1, px2 - px1, py2 - py1,
+                PixelFormat.getIntArgbInstance(),
+                pixels, py1 * width + px1, width);
+        GraphicsContext ctx = canvas.getGraphicsContext2D();
+        ctx.drawImage(image,
+                px1, py1, px2 - px1, py2 - py1,
+                px1, py1, px2 - px1, py2 - py1);
+    }
+
+    /**
+     * @return the first of pixels showing tile t or any tile after it.
+     */
+    private static int firstPixel(int t, int tiles, int pixels) {
+        return (int)(((long)t * pixels + tiles - 1) / tiles);
+    }
+}
@@ -0,0 +1,305 @@
+package buzaan.procgen;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A map whose tiles live outside the Java heap, in direct ByteBuffers.
+ * Heap maps index a single array with an int, which caps them at about 2^31
+ * tiles; here the tiles are split into segments of whole rows, each at most
+ * 1 GiB, and addressed with long indices, so maps far larger than 46k x 46k
+ * can be generated into, without a copy of them on the heap.
+ *
+ * Like MapFile, there are two layouts: an int per tile for RGB maps, or
+ * BitMap's packed rows of WALL and SPACE bits for binary maps, which reject
+ * any other tile value. The memory is freed when the map is collected.
+ *
+ * Rows never share storage, so bands of rows may be written from several
+ * threads at once.
+ * @author buzaan
+ */
+public class OffHeapMap extends Map {
+    // Largest buffer allocated at once.
+    private static final int MAX_SEGMENT = 1 << 30;
+
+    private final boolean binary;
+    private final ByteBuffer[] segments;
+    private final int rowsPerSegment;
+    private final int rowBytes;
+    private final int wordsPerRow;
+
+    /**
+     * A map of solid wall.
+     * @param binary whether to pack WALL and SPACE tiles into bits.
+     */
+    public OffHeapMap(int width, int height, boolean binary) {
+        super(width, height);
+        if(width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Empty map.");
+        }
+        this.binary = binary;
+        wordsPerRow = (width + 63) >>> 6;
+        long bytes = binary ? 8L * wordsPerRow : 4L * width;
+        if(bytes > MAX_SEGMENT) {
+            throw new IllegalArgumentException("Rows are too wide.");
+        }
+        rowBytes = (int)bytes;
+        rowsPerSegment = Math.min(height, MAX_SEGMENT / rowBytes);
+        segments = new ByteBuffer[(height + rowsPerSegment - 1)
+                / rowsPerSegment];
+        for(int i = 0; i < segments.length; i++) {
+            int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+            // Direct buffers start zeroed, which is WALL in both layouts.
+            segments[i] = ByteBuffer.allocateDirect(rowBytes * rows)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return the row-major index of tile (x, y).
+     */
+    public long index(int x, int y) {
+        return (long)y * getWidth() + x;
+    }
+
+    /**
+     * @return the number of tiles, which may not fit in an int.
+     */
+    public long size() {
+        return (long)getWidth() * getHeight();
+    }
+
+    /**
+     * @return the tile at row-major index i.
+     */
+    public int getTile(long i) {
+        return getTile((int)(i % getWidth()), (int)(i / getWidth()));
+    }
+
+    public void setTile(long i, int value) {
+        setTile((int)(i % getWidth()), (int)(i / getWidth()), value);
+    }
+
+    @Override
+    public int getTile(int x, int y) {
+        checkX(x);
+        ByteBuffer seg = segment(y);
+        int row = rowOffset(y);
+        if(binary) {
+            long word = seg.getLong(row + (x >>> 6) * 8);
+            return (word >>> x & 1L) != 0 ? SPACE : WALL;
+        }
+        return seg.getInt(row + x * 4);
+    }
+
+    @Override
+    public void setTile(int x, int y, int value) {
+        checkX(x);
+        ByteBuffer seg = segment(y);
+        int row = rowOffset(y);
+        if(binary) {
+            int i = row + (x >>> 6) * 8;
+            if(toBit(value)) {
+                seg.putLong(i, seg.getLong(i) | 1L << x);
+            } else {
+                seg.putLong(i, seg.getLong(i) & ~(1L << x));
+            }
+        } else {
+            seg.putInt(row + x * 4, value);
+        }
+    }
+
+    @Override
+    public void setRow(int y, int[] row) {
+        int w = getWidth();
+        if(binary) {
+            LongBuffer words = words(y);
+            for(int k = 0; k < wordsPerRow; k++) {
+                long word = 0L;
+                int end = Math.min(w, (k + 1) * 64);
+                for(int x = k * 64; x < end; x++) {
+                    if(toBit(row[x])) {
+                        word |= 1L << x;
+                    }
+                }
+                words.put(word);
+            }
+        } else {
+            ints(y).put(row, 0, w);
+        }
+    }
+
+    @Override
+    public void getRow(int y, int[] row) {
+        int w = getWidth();
+        if(binary) {
+            LongBuffer words = words(y);
+            for(int k = 0; k < wordsPerRow; k++) {
+                long word = words.get();
+                int end = Math.min(w, (k + 1) * 64);
+                for(int x = k * 64; x < end; x++) {
+                    row[x] = (word >>> x & 1L) != 0 ? SPACE : WALL;
+                }
+            }
+        } else {
+            ints(y).get(row, 0, w);
+        }
+    }
+
+    @Override
+    public void fillSpan(int y, int x1, int x2, int c) {
+        if(x1 >= x2) {
+            return;
+        }
+        checkX(x1);
+        checkX(x2 - 1);
+        ByteBuffer seg = segment(y);
+        int row = rowOffset(y);
+        if(binary) {
+            boolean space = toBit(c);
+            int first = x1 >>> 6;
+            int last = (x2 - 1) >>> 6;
+            long firstMask = -1L << x1;
+            long lastMask = -1L >>> (63 - ((x2 - 1) & 63));
+            for(int k = first; k <= last; k++) {
+                long mask = -1L;
+                if(k == first) {
+                    mask &= firstMask;
+                }
+                if(k == last) {
+                    mask &= lastMask;
+                }
+                int i = row + k * 8;
+                long word = seg.getLong(i);
+                seg.putLong(i, space ? word | mask : word & ~mask);
+            }
+        } else {
+            for(int x = x1; x < x2; x++) {
+                seg.putInt(row + x * 4, c);
+            }
+        }
+    }
+
+    @Override
+    public long byteSize() {
+        return (long)rowBytes * getHeight();
+    }
+
+    /**
+     * @return a copy of the map on the heap, if it is small enough for one.
+     */
+    @Override
+    public RgbMap toRgb() {
+        if(size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException(
+                    "Map is too large to convert to an RgbMap.");
+        }
+        RgbMap out = new RgbMap(getWidth(), getHeight());
+        copyTo(out);
+        return out;
+    }
+
+    @Override
+    protected void copyTo(Map dest) {
+        if(binary && dest instanceof BitMap) {
+            BitMap b = (BitMap)dest;
+            long[] words = b.words();
+            for(int y = 0; y < getHeight(); y++) {
+                words(y).get(words, y * wordsPerRow, wordsPerRow);
+            }
+            b.modified();
+        } else if(dest instanceof OffHeapMap
+                && ((OffHeapMap)dest).binary == binary) {
+            OffHeapMap o = (OffHeapMap)dest;
+            for(int y = 0; y < getHeight(); y++) {
+                o.row(y).put(row(y));
+            }
+        } else {
+            super.copyTo(dest);
+        }
+    }
+
+    /**
+     * Copies a BitMap in word by word, for BitMap.copyTo.
+     */
+    void copyFrom(BitMap src) {
+        long[] words = src.words();
+        for(int y = 0; y < getHeight(); y++) {
+            setWords(y, words, y * wordsPerRow);
+        }
+    }
+
+    /**
+     * Sets row y of a binary map to wordsPerRow() words of src in BitMap's
+     * layout, starting at offset.
+     */
+    void setWords(int y, long[] src, int offset) {
+        words(y).put(src, offset, wordsPerRow);
+    }
+
+    /**
+     * Copies row y of a binary map into dest from offset, as wordsPerRow()
+     * words in BitMap's layout.
+     */
+    void getWords(int y, long[] dest, int offset) {
+        words(y).get(dest, offset, wordsPerRow);
+    }
+
+    /**
+     * @return word k of row y of a binary map, in BitMap's layout.
+     */
+    long getWord(int y, int k) {
+        return segment(y).getLong(rowOffset(y) + k * 8);
+    }
+
+    int wordsPerRow() {
+        return wordsPerRow;
+    }
+
+    private void checkX(int x) {
+        if(x < 0 || x >= getWidth()) {
+            throw new IndexOutOfBoundsException("x = " + x);
+        }
+    }
+
+    private ByteBuffer segment(int y) {
+        return segments[y / rowsPerSegment];
+    }
+
+    private int rowOffset(int y) {
+        return (y % rowsPerSegment) * rowBytes;
+    }
+
+    /**
+     * @return a view of just row y, so rows can be read and written in
+     * bulk from several threads without sharing a buffer position.
+     */
+    private ByteBuffer row(int y) {
+        ByteBuffer b = segment(y).duplicate();
+        int start = rowOffset(y);
+        b.limit(start + rowBytes).position(start);
+        return b.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private IntBuffer ints(int y) {
+        return row(y).asIntBuffer();
+    }
+
+    private LongBuffer words(int y) {
+        return row(y).asLongBuffer();
+    }
+
+    private static boolean toBit(int c) {
+        if(c != SPACE && c != WALL) {
+            throw new IllegalArgumentException(
+                    "Only WALL or SPACE can be stored in a binary map.");
+        }
+        return c == SPACE;
+    }
+}
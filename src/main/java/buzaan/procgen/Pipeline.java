@@ -0,0 +1,468 @@
+package buzaan.procgen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A generator built from a chain of stages.
+ * Point stages compute each tile from that tile alone, such as seeding,
+ * thresholding and colourising; area stages read a neighbourhood, such as CA
+ * steps and smoothing. Runs of adjacent point stages are fused into a single
+ * pass that carries each row through all of them while it is in cache, and
+ * is done in place. Area stages write into a second buffer, and the two are
+ * swapped after each one, so however long the chain a generation uses at
+ * most two maps. The second comes from the generator's MapPool and goes
+ * back to it once the generation is done.
+ *
+ * <pre>
+ * new Pipeline(w, h, true)
+ *         .then(Pipeline.noise())
+ *         .then(Pipeline.caveStep())
+ *         .then(Pipeline.caveStep());
+ * </pre>
+ *
+ * Stages are called from several threads at once and must be thread-safe.
+ * @author buzaan
+ */
+public class Pipeline extends AbstractMapGenerator {
+    private final int width;
+    private final int height;
+    private final boolean binary;
+    private final IMapGenerator source;
+    private final List<Pass> passes = new ArrayList<>();
+    private int stages = 0;
+
+    public interface PointStage {
+        /**
+         * @return the new value of tile (x, y), whose value is value.
+         */
+        int apply(long seed, int x, int y, int value);
+    }
+
+    /**
+     * A point stage that can also fill a whole row at once, for stages that
+     * are cheaper a row at a time.
+     */
+    interface RowStage extends PointStage {
+        /**
+         * Applies the stage to every tile of row y in place.
+         */
+        void applyRow(long seed, int y, int[] row);
+    }
+
+    public interface AreaStage {
+        /**
+         * Writes the next state of src into every tile of dest, which has the
+         * same type and dimensions.
+         */
+        void apply(long seed, Map src, Map dest);
+    }
+
+    /**
+     * Marks stages that write colours, which binary maps can't hold.
+     */
+    private interface RgbOnly {
+    }
+
+    /**
+     * A run of fused point stages, done in place, or an area stage, which
+     * writes into the spare map.
+     */
+    private static abstract class Pass {
+        abstract boolean inPlace();
+
+        /**
+         * @return the first stage of the pass that writes colours, or null.
+         */
+        abstract Object rgbOnly();
+
+        /**
+         * @param empty whether to treat every tile of src as WALL.
+         */
+        abstract void apply(long seed, Map src, Map dest, boolean empty);
+    }
+
+    private static final class Points extends Pass {
+        private final PointStage[] fused;
+
+        Points(PointStage... fused) {
+            this.fused = fused;
+        }
+
+        /**
+         * @return these stages followed by stage.
+         */
+        Points then(PointStage stage) {
+            PointStage[] longer = Arrays.copyOf(fused, fused.length + 1);
+            longer[fused.length] = stage;
+            return new Points(longer);
+        }
+
+        @Override
+        boolean inPlace() {
+            return true;
+        }
+
+        @Override
+        Object rgbOnly() {
+            for(PointStage s : fused) {
+                if(s instanceof RgbOnly) {
+                    return s;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void apply(long seed, Map src, Map dest, boolean empty) {
+            points(seed, dest, fused, empty);
+        }
+    }
+
+    private static final class Area extends Pass {
+        private final AreaStage stage;
+
+        Area(AreaStage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        boolean inPlace() {
+            return false;
+        }
+
+        @Override
+        Object rgbOnly() {
+            return stage instanceof RgbOnly ? stage : null;
+        }
+
+        @Override
+        void apply(long seed, Map src, Map dest, boolean empty) {
+            if(empty) {
+                src.fillRegion(0, 0, src.getWidth() - 1, src.getHeight() - 1,
+                        Map.WALL);
+            }
+            stage.apply(seed, src, dest);
+        }
+    }
+
+    /**
+     * A pipeline starting from an empty map.
+     * @param binary whether to work on BitMaps, which only hold WALL and
+     * SPACE, rather than RgbMaps.
+     */
+    public Pipeline(int width, int height, boolean binary) {
+        this(width, height, binary, null, new MapPool(2));
+    }
+
+    /**
+     * A pipeline starting from maps made by source.
+     */
+    public Pipeline(IMapGenerator source) {
+        this(1, 1, false, source, new MapPool(2));
+    }
+
+    /**
+     * @param width width of the empty map started from without a source.
+     * @param height height of the empty map started from without a source.
+     * @param binary type of the empty map started from without a source.
+     * @param source generator of the first map, or null to start with every
+     * tile WALL.
+     * @param pool where maps come from, or null to allocate them.
+     */
+    public Pipeline(int width, int height, boolean binary,
+            IMapGenerator source, MapPool pool) {
+        if(width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Arguments must be positive.");
+        }
+        this.width = width;
+        this.height = height;
+        this.binary = binary;
+        this.source = source;
+        setMapPool(pool);
+    }
+
+    /**
+     * Adds a point stage, fusing it with the stage before if that is one too.
+     */
+    public synchronized Pipeline then(PointStage stage) {
+        checkBinary(stage);
+        int last = passes.size() - 1;
+        if(last >= 0 && passes.get(last) instanceof Points) {
+            passes.set(last, ((Points)passes.get(last)).then(stage));
+        } else {
+            passes.add(new Points(stage));
+        }
+        stages++;
+        return this;
+    }
+
+    public synchronized Pipeline then(AreaStage stage) {
+        checkBinary(stage);
+        passes.add(new Area(stage));
+        stages++;
+        return this;
+    }
+
+    /**
+     * Rejects stages that write colours on a pipeline known to be binary.
+     */
+    private void checkBinary(Object stage) {
+        if(source == null && binary && stage instanceof RgbOnly) {
+            throw new IllegalArgumentException(rgbOnly(stage));
+        }
+    }
+
+    private static String rgbOnly(Object stage) {
+        return stage + " writes colours, which binary maps can't hold. Run it"
+                + " on an RGB pipeline, and threshold() it afterwards for WALL"
+                + " and SPACE.";
+    }
+
+    @Override
+    public Map generate(long seed, GenerationMonitor monitor) {
+        Pass[] run;
+        synchronized(this) {
+            run = passes.toArray(new Pass[passes.size()]);
+        }
+        // The source counts as one pass.
+        double total = run.length + (source != null ? 1 : 0);
+        Map current;
+        boolean empty;
+        if(source != null) {
+            current = source.generate(seed, part(monitor, 0, 1 / total));
+            empty = false;
+            if(current instanceof BitMap) {
+                for(Pass pass : run) {
+                    if(pass.rgbOnly() != null) {
+                        throw new IllegalStateException(
+                                rgbOnly(pass.rgbOnly()));
+                    }
+                }
+            }
+        } else {
+            current = binary
+                    ? takeBitMap(width, height)
+                    : takeRgbMap(width, height);
+            empty = true;
+        }
+
+        Map spare = null;
+        int done = source != null ? 1 : 0;
+        try {
+            for(Pass pass : run) {
+                monitor.checkpoint(done++ / total);
+                if(pass.inPlace()) {
+                    pass.apply(seed, current, current, empty);
+                } else {
+                    if(spare == null) {
+                        int w = current.getWidth();
+                        int h = current.getHeight();
+                        spare = current instanceof BitMap
+                                ? takeBitMap(w, h)
+                                : takeRgbMap(w, h);
+                    }
+                    pass.apply(seed, current, spare, empty);
+                    Map t = current;
+                    current = spare;
+                    spare = t;
+                }
+                empty = false;
+            }
+            if(empty) {
+                current.fillRegion(0, 0, current.getWidth() - 1,
+                        current.getHeight() - 1, Map.WALL);
+            }
+        } finally {
+            if(spare != null) {
+                give(spare);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Runs fused point stages over m in place, a row at a time.
+     * @param empty whether to treat every tile as WALL rather than read m.
+     */
+    private static void points(final long seed, final Map m,
+            final PointStage[] fused, final boolean empty) {
+        final int w = m.getWidth();
+        RowBands.run(m.getHeight(), ForkJoinPool.commonPool(),
+                new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                int[] row = new int[w];
+                for(int y = y1; y < y2; y++) {
+                    if(empty) {
+                        Arrays.fill(row, Map.WALL);
+                    } else {
+                        m.getRow(y, row);
+                    }
+                    for(PointStage s : fused) {
+                        if(s instanceof RowStage) {
+                            ((RowStage)s).applyRow(seed, y, row);
+                            continue;
+                        }
+                        for(int x = 0; x < w; x++) {
+                            row[x] = s.apply(seed, x, y, row[x]);
+                        }
+                    }
+                    m.setRow(y, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * WALL or SPACE with even odds, the same tiles RandomMapGenerator gives
+     * for the seed. Rows are drawn 64 tiles to a word, so a tile on its own
+     * costs the words before it in its row.
+     */
+    public static PointStage noise() {
+        return new RowStage() {
+            @Override
+            public int apply(long seed, int x, int y, int value) {
+                long[] words = new long[(x >>> 6) + 1];
+                RandomMapGenerator.fillWords(seed, y,
+                        RandomMapGenerator.EVEN_ODDS, x + 1, words, 0);
+                return (words[x >>> 6] >>> x & 1L) != 0
+                        ? Map.SPACE : Map.WALL;
+            }
+
+            @Override
+            public void applyRow(long seed, int y, int[] row) {
+                long[] words = new long[(row.length + 63) >>> 6];
+                RandomMapGenerator.fillWords(seed, y,
+                        RandomMapGenerator.EVEN_ODDS, row.length, words, 0);
+                RandomMapGenerator.toTiles(words, row, row.length);
+            }
+        };
+    }
+
+    /**
+     * The cave rule of CellularAutomataMapGenerator: a tile becomes WALL when
+     * at least 5 of its neighbours are walls, and the border stays WALL.
+     */
+    public static AreaStage caveStep() {
+        return rule(CaRule.CAVE);
+    }
+
+    /**
+     * One generation of a cellular automaton rule, with WALL as live.
+     */
+    public static AreaStage rule(final CaRule rule) {
+        return new AreaStage() {
+            @Override
+            public void apply(long seed, Map src, Map dest) {
+                rule.step(src, dest);
+            }
+        };
+    }
+
+    /**
+     * Averages each colour channel over the 3x3 block around every tile,
+     * clamped at the edges of the map. Only for RGB pipelines.
+     */
+    public static AreaStage smooth() {
+        return new Smooth();
+    }
+
+    private static final class Smooth implements AreaStage, RgbOnly {
+        @Override
+        public void apply(long seed, final Map src, final Map dest) {
+            final int w = src.getWidth();
+            final int h = src.getHeight();
+            RowBands.run(h, ForkJoinPool.commonPool(),
+                    new RowBands.Band() {
+                @Override
+                public void rows(int y1, int y2) {
+                    int[] row = new int[w];
+                    // Rows y - 1, y and y + 1 of src.
+                    int[][] near = new int[3][w];
+                    for(int y = y1; y < y2; y++) {
+                        int j1 = Math.max(0, y - 1);
+                        int j2 = Math.min(h - 1, y + 1);
+                        for(int j = j1; j <= j2; j++) {
+                            src.getRow(j, near[j - y + 1]);
+                        }
+                        for(int x = 0; x < w; x++) {
+                            int r = 0;
+                            int g = 0;
+                            int b = 0;
+                            int n = 0;
+                            for(int j = j1; j <= j2; j++) {
+                                int[] tiles = near[j - y + 1];
+                                for(int i = Math.max(0, x - 1);
+                                        i <= Math.min(w - 1, x + 1); i++) {
+                                    int c = tiles[i];
+                                    r += c >>> 16 & 0xff;
+                                    g += c >>> 8 & 0xff;
+                                    b += c & 0xff;
+                                    n++;
+                                }
+                            }
+                            row[x] = (r / n) << 16 | (g / n) << 8 | b / n;
+                        }
+                        dest.setRow(y, row);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "smooth()";
+        }
+    }
+
+    /**
+     * SPACE where the grey level, the mean of the channels, is at least
+     * level and WALL elsewhere.
+     */
+    public static PointStage threshold(final int level) {
+        return new PointStage() {
+            @Override
+            public int apply(long seed, int x, int y, int value) {
+                int grey = ((value >>> 16 & 0xff) + (value >>> 8 & 0xff)
+                        + (value & 0xff)) / 3;
+                return grey >= level ? Map.SPACE : Map.WALL;
+            }
+        };
+    }
+
+    /**
+     * Colours each tile through palette, taking its blue channel as height.
+     * Only for RGB pipelines.
+     */
+    public static PointStage colorize(HeightField.Palette palette) {
+        return new Colorize(palette);
+    }
+
+    private static final class Colorize implements PointStage, RgbOnly {
+        private final HeightField.Palette palette;
+
+        Colorize(HeightField.Palette palette) {
+            this.palette = palette;
+        }
+
+        @Override
+        public int apply(long seed, int x, int y, int value) {
+            return palette.color(value & 0xff);
+        }
+
+        @Override
+        public String toString() {
+            return "colorize()";
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Pipeline(" + (source != null ? source : width + "x" + height)
+                + ", " + stages
+                + " stages in " + passes.size() + " passes)";
+    }
+}
@@ -1,29 +1,147 @@
 package buzaan.procgen;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Fills a map with random WALL and SPACE tiles.
+ * Tiles are drawn 64 at a time: each row has its own SplittableRandom,
+ * seeded from the map's seed and the row, and every long it gives becomes a
+ * word of BitMap tiles. Rows are filled in parallel bands, and since no row
+ * depends on another the map is the same however the bands fall.
  *
+ * The wall probability is rounded to a multiple of 1/256. Probabilities
+ * other than a half take a few more words per word of tiles, combined bit by
+ * bit so that each tile ends up compared against the probability.
  * @author buzaan
  */
-public class RandomMapGenerator implements IMapGenerator {
-    private final Random rnd = new Random();
+public class RandomMapGenerator extends AbstractMapGenerator {
+    // Bits of precision in the wall probability.
+    private static final int PRECISION = 8;
+    // Chance of a SPACE tile at a wall probability of a half.
+    static final int EVEN_ODDS = 1 << (PRECISION - 1);
+
     private final int xSize;
     private final int ySize;
+    // Chance of a SPACE tile, in units of 2^-PRECISION.
+    private volatile int spaceOdds = EVEN_ODDS;
 
     RandomMapGenerator(int x, int y) {
         xSize = x;
         ySize = y;
     }
 
+    /**
+     * Sets the chance of each tile being WALL, 0.5 by default.
+     */
+    public void setWallProbability(double p) {
+        if(!(p >= 0 && p <= 1)) {
+            throw new IllegalArgumentException(
+                    "Probability must be in [0, 1].");
+        }
+        spaceOdds = (int)Math.round((1 - p) * (1 << PRECISION));
+    }
+
+    public double getWallProbability() {
+        return 1 - (double)spaceOdds / (1 << PRECISION);
+    }
+
     @Override
-    public Map generate() {
-        Map out = new Map(xSize, ySize);
-        for(int x = 0; x < xSize; x++) {
-            for(int y = 0; y < ySize; y++) {
-                out.setTile(x, y, rnd.nextBoolean() ? Map.SPACE : Map.WALL);
+    public BitMap generate(long seed, GenerationMonitor monitor) {
+        BitMap out = takeBitMap(xSize, ySize);
+        generate(seed, out, monitor);
+        return out;
+    }
+
+    @Override
+    public Map generate(final long seed, final Map dest,
+            final GenerationMonitor monitor) {
+        checkDest(dest, xSize, ySize);
+        final int odds = spaceOdds;
+        final int wordsPerRow = (xSize + 63) >>> 6;
+        final AtomicInteger done = new AtomicInteger();
+        RowBands.run(ySize, ForkJoinPool.commonPool(), new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                long[] words = dest instanceof BitMap
+                        ? ((BitMap)dest).words()
+                        : new long[wordsPerRow];
+                int[] row = null;
+                for(int y = y1; y < y2; y++) {
+                    monitor.checkpoint((double)done.getAndIncrement() / ySize);
+                    int offset = dest instanceof BitMap ? y * wordsPerRow : 0;
+                    fillWords(seed, y, odds, xSize, words, offset);
+                    if(dest instanceof BitMap) {
+                        continue;
+                    } else if(dest instanceof OffHeapMap
+                            && ((OffHeapMap)dest).isBinary()) {
+                        ((OffHeapMap)dest).setWords(y, words, 0);
+                        continue;
+                    }
+                    if(row == null) {
+                        row = new int[xSize];
+                    }
+                    toTiles(words, row, xSize);
+                    dest.setRow(y, row);
+                }
             }
+        });
+        if(dest instanceof BitMap) {
+            ((BitMap)dest).modified();
         }
-        return out;
+        return dest;
+    }
+
+    /**
+     * Writes row y of the map for seed into words from offset, in BitMap's
+     * layout: a set bit is SPACE, with probability odds / 2^PRECISION, and
+     * bits past width are clear. Pipeline.noise() shares this, so its rows
+     * match the generator's.
+     */
+    static void fillWords(long seed, int y, int odds, int width, long[] words,
+            int offset) {
+        int n = (width + 63) >>> 6;
+        SplittableRandom rnd = new SplittableRandom(SeedHash.derive(seed, y));
+        for(int k = 0; k < n - 1; k++) {
+            words[offset + k] = spaces(rnd, odds);
+        }
+        words[offset + n - 1] = spaces(rnd, odds) & -1L >>> (n * 64 - width);
+    }
+
+    /**
+     * Unpacks the first width bits of words into WALL and SPACE tiles.
+     */
+    static void toTiles(long[] words, int[] row, int width) {
+        for(int x = 0; x < width; x++) {
+            row[x] = (words[x >>> 6] >>> x & 1L) != 0 ? Map.SPACE : Map.WALL;
+        }
+    }
+
+    /**
+     * @return a word with each bit set with probability
+     * odds / 2^PRECISION. The bits of odds are applied from the lowest: a
+     * set bit ORs in a fresh random word and a clear bit ANDs one in, which
+     * halves the chance so far and adds a half for set bits.
+     */
+    private static long spaces(SplittableRandom rnd, int odds) {
+        if(odds <= 0) {
+            return 0L;
+        } else if(odds >= 1 << PRECISION) {
+            return -1L;
+        }
+        // Clear low bits would only AND into a word that is still zero.
+        long word = 0L;
+        for(int i = Integer.numberOfTrailingZeros(odds); i < PRECISION; i++) {
+            long r = rnd.nextLong();
+            word = (odds >>> i & 1) != 0 ? word | r : word & r;
+        }
+        return word;
+    }
+
+    @Override
+    public String toString() {
+        return "RandomMapGenerator(" + xSize + "x" + ySize
+                + ", walls " + getWallProbability() + ")";
     }
 }
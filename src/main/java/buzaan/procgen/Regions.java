@@ -0,0 +1,298 @@
+package buzaan.procgen;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Connected regions of a map, labelled with union-find.
+ * Tiles of one colour are grouped into 4-connected regions in two passes
+ * over a single int per tile. The first pass links each tile to its left
+ * and upper neighbours, in parallel bands of rows whose edges are linked
+ * afterwards; the second numbers the regions in row-major order of their
+ * first tile and gathers their sizes and bounds.
+ *
+ * Maps of more than Integer.MAX_VALUE tiles have too many labels for an
+ * array and are rejected.
+ *
+ * Labels describe the map as it was when labelled. removeSmallerThan()
+ * keeps them up to date; connect() does not.
+ * @author buzaan
+ */
+public final class Regions {
+    /**
+     * Label of tiles outside every region.
+     */
+    public static final int NONE = -1;
+
+    private final int width;
+    private final int height;
+    private final int color;
+    private final int[] labels;
+    private int count;
+    // Per region: size, first tile in row-major order and bounds.
+    private int[] sizes;
+    private int[] firsts;
+    private int[] bounds;
+
+    private Regions(int width, int height, int color) {
+        this.width = width;
+        this.height = height;
+        this.color = color;
+        if((long)width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Map is too large to label.");
+        }
+        labels = new int[width * height];
+        sizes = new int[16];
+        firsts = new int[16];
+        bounds = new int[64];
+    }
+
+    /**
+     * Labels the regions of tiles equal to color, in parallel.
+     */
+    public static Regions label(Map map, int color) {
+        return label(map, color, ForkJoinPool.commonPool());
+    }
+
+    public static Regions label(final Map map, int color, Executor executor) {
+        final Regions r = new Regions(map.getWidth(), map.getHeight(), color);
+        final int w = r.width;
+        final int[] labels = r.labels;
+        final int[] bandStarts = new int[r.height];
+        RowBands.run(r.height, executor, new RowBands.Band() {
+            @Override
+            public void rows(int y1, int y2) {
+                bandStarts[y1] = 1;
+                r.linkRows(map, y1, y2);
+            }
+        });
+        // Link each band to the one above it.
+        for(int y = 1; y < r.height; y++) {
+            if(bandStarts[y] == 0) {
+                continue;
+            }
+            for(int x = 0, i = y * w; x < w; x++, i++) {
+                if(labels[i] != NONE && labels[i - w] != NONE) {
+                    r.union(i, i - w);
+                }
+            }
+        }
+        r.number();
+        return r;
+    }
+
+    /**
+     * First pass over rows [y1, y2): every tile of the colour points at
+     * itself or an earlier tile of its region, always within these rows.
+     */
+    private void linkRows(Map map, int y1, int y2) {
+        int[] row = new int[width];
+        for(int y = y1; y < y2; y++) {
+            map.getRow(y, row);
+            for(int x = 0, i = y * width; x < width; x++, i++) {
+                if(row[x] != color) {
+                    labels[i] = NONE;
+                    continue;
+                }
+                labels[i] = i;
+                if(x > 0 && labels[i - 1] != NONE) {
+                    union(i, i - 1);
+                }
+                if(y > y1 && labels[i - width] != NONE) {
+                    union(i, i - width);
+                }
+            }
+        }
+    }
+
+    private int find(int i) {
+        while(labels[i] != i) {
+            labels[i] = labels[labels[i]];
+            i = labels[i];
+        }
+        return i;
+    }
+
+    /**
+     * Joins the sets of a and b under the earlier of their roots, so a
+     * tile's parent always comes before it.
+     */
+    private void union(int a, int b) {
+        int ra = find(a);
+        int rb = find(b);
+        if(ra < rb) {
+            labels[rb] = ra;
+        } else if(rb < ra) {
+            labels[ra] = rb;
+        }
+    }
+
+    /**
+     * Second pass: replaces parents with region numbers. Parents come first
+     * in row-major order, so a tile's parent has always been numbered by the
+     * time the tile is reached.
+     */
+    private void number() {
+        for(int y = 0, i = 0; y < height; y++) {
+            for(int x = 0; x < width; x++, i++) {
+                int p = labels[i];
+                if(p == NONE) {
+                    continue;
+                }
+                int id;
+                if(p == i) {
+                    id = newRegion(i, x, y);
+                } else {
+                    id = labels[p];
+                    int b = 4 * id;
+                    bounds[b] = Math.min(bounds[b], x);
+                    bounds[b + 2] = Math.max(bounds[b + 2], x);
+                    bounds[b + 3] = y;
+                }
+                labels[i] = id;
+                sizes[id]++;
+            }
+        }
+    }
+
+    private int newRegion(int first, int x, int y) {
+        if(count == sizes.length) {
+            sizes = Arrays.copyOf(sizes, 2 * count);
+            firsts = Arrays.copyOf(firsts, 2 * count);
+            bounds = Arrays.copyOf(bounds, 8 * count);
+        }
+        int id = count++;
+        firsts[id] = first;
+        bounds[4 * id] = x;
+        bounds[4 * id + 1] = y;
+        bounds[4 * id + 2] = x;
+        bounds[4 * id + 3] = y;
+        return id;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the region of tile (x, y), or NONE.
+     */
+    public int getLabel(int x, int y) {
+        return labels[x + y * width];
+    }
+
+    public int getSize(int region) {
+        checkRegion(region);
+        return sizes[region];
+    }
+
+    /**
+     * @return the inclusive bounding box of region.
+     */
+    public Rect getBounds(int region) {
+        checkRegion(region);
+        int b = 4 * region;
+        return new Rect(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]);
+    }
+
+    /**
+     * @return the largest region, or NONE if there are none. Ties go to the
+     * region found first.
+     */
+    public int getLargest() {
+        int best = NONE;
+        for(int i = 0; i < count; i++) {
+            if(sizes[i] > 0 && (best == NONE || sizes[i] > sizes[best])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private void checkRegion(int region) {
+        if(region < 0 || region >= count) {
+            throw new IllegalArgumentException("No region " + region + ".");
+        }
+    }
+
+    /**
+     * Fills every region smaller than minSize tiles with fill, in map and in
+     * the labels. Removed regions keep their numbers but have size 0.
+     * @return the number of regions removed.
+     */
+    public int removeSmallerThan(Map map, int minSize, int fill) {
+        boolean[] remove = new boolean[count];
+        int removed = 0;
+        for(int i = 0; i < count; i++) {
+            if(sizes[i] > 0 && sizes[i] < minSize) {
+                remove[i] = true;
+                removed++;
+            }
+        }
+        if(removed == 0) {
+            return 0;
+        }
+        int[] row = new int[width];
+        for(int y = 0, i = 0; y < height; y++) {
+            boolean changed = false;
+            for(int x = 0; x < width; x++, i++) {
+                int id = labels[i];
+                if(id != NONE && remove[id]) {
+                    if(!changed) {
+                        map.getRow(y, row);
+                        changed = true;
+                    }
+                    row[x] = fill;
+                    labels[i] = NONE;
+                }
+            }
+            if(changed) {
+                map.setRow(y, row);
+            }
+        }
+        for(int i = 0; i < count; i++) {
+            if(remove[i]) {
+                sizes[i] = 0;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Joins every region to the largest by opening an L-shaped corridor from
+     * the first tile of each to the first tile of the largest. The corridor
+     * is drawn in the regions' colour and stays within the box spanned by
+     * the two tiles.
+     */
+    public void connect(Map map) {
+        int main = getLargest();
+        if(main == NONE) {
+            return;
+        }
+        int mx = firsts[main] % width;
+        int my = firsts[main] / width;
+        for(int i = 0; i < count; i++) {
+            if(i == main || sizes[i] == 0) {
+                continue;
+            }
+            int x = firsts[i] % width;
+            int y = firsts[i] / width;
+            map.fillSpan(y, Math.min(x, mx), Math.max(x, mx) + 1, color);
+            map.fillRegion(mx, Math.min(y, my), 0, Math.abs(y - my), color);
+        }
+    }
+
+    @Override
+    public String toString() {
+        int live = 0;
+        for(int i = 0; i < count; i++) {
+            if(sizes[i] > 0) {
+                live++;
+            }
+        }
+        int largest = getLargest();
+        return "Regions(" + live + " regions, largest "
+                + (largest == NONE ? 0 : sizes[largest]) + " tiles)";
+    }
+}
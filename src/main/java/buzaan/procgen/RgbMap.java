@@ -0,0 +1,67 @@
+package buzaan.procgen;
+
+import java.util.Arrays;
+
+/**
+ * A map storing every tile as a packed RGB int.
+ * The tiles share one array, so a map holds at most Integer.MAX_VALUE of
+ * them; larger maps need an OffHeapMap.
+ * @author buzaan
+ */
+public class RgbMap extends Map {
+    private final int[] data;
+
+    public RgbMap(int width, int height) {
+        super(width, height);
+        if((long)width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Map is too large for an"
+                    + " RgbMap; use an OffHeapMap instead.");
+        }
+        data = new int[width * height];
+    }
+
+    @Override
+    public int getTile(int x, int y) {
+        return data[x + y * getWidth()];
+    }
+
+    @Override
+    public void setTile(int x, int y, int value) {
+        data[x + y * getWidth()] = value;
+    }
+
+    @Override
+    public void getRow(int y, int[] row) {
+        System.arraycopy(data, y * getWidth(), row, 0, getWidth());
+    }
+
+    @Override
+    public void setRow(int y, int[] row) {
+        System.arraycopy(row, 0, data, y * getWidth(), getWidth());
+    }
+
+    @Override
+    public void fillSpan(int y, int x1, int x2, int c) {
+        int row = y * getWidth();
+        Arrays.fill(data, row + x1, row + x2, c);
+    }
+
+    @Override
+    public long byteSize() {
+        return 4L * data.length;
+    }
+
+    @Override
+    public RgbMap toRgb() {
+        return this;
+    }
+
+    @Override
+    protected void copyTo(Map dest) {
+        if(dest instanceof RgbMap) {
+            System.arraycopy(data, 0, ((RgbMap)dest).data, 0, data.length);
+        } else {
+            super.copyTo(dest);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package buzaan.procgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of a map into bands and runs them in parallel.
+ * Bands are contiguous runs of whole rows, so every band touches its own
+ * stretch of a row-major array and never shares a BitMap word with another.
+ * Returns once every band has finished, rethrowing the first failure.
+ * @author buzaan
+ */
+final class RowBands {
+    // Below this many rows a band isn't worth handing to another thread.
+    private static final int MIN_BAND_ROWS = 16;
+    // Bands per thread, so uneven bands still balance out.
+    private static final int BANDS_PER_THREAD = 4;
+
+    interface Band {
+        /**
+         * Processes rows [y1, y2).
+         */
+        void rows(int y1, int y2);
+    }
+
+    private RowBands() {
+    }
+
+    static void run(int height, Executor executor, Band band) {
+        int threads = executor instanceof ForkJoinPool
+                ? ((ForkJoinPool)executor).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        int bandRows = Math.max(MIN_BAND_ROWS,
+                (height + threads * BANDS_PER_THREAD - 1)
+                        / (threads * BANDS_PER_THREAD));
+        if(bandRows >= height) {
+            band.rows(0, height);
+        } else if(executor instanceof ForkJoinPool) {
+            ((ForkJoinPool)executor).invoke(
+                    new Split(band, 0, height, bandRows));
+        } else {
+            runTasks(height, bandRows, executor, band);
+        }
+    }
+
+    private static void runTasks(int height, int bandRows, Executor executor,
+            final Band band) {
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for(int y = 0; y < height; y += bandRows) {
+            final int y1 = y;
+            final int y2 = Math.min(height, y + bandRows);
+            FutureTask<Void> task = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    band.rows(y1, y2);
+                }
+            }, null);
+            tasks.add(task);
+            executor.execute(task);
+        }
+        try {
+            for(FutureTask<Void> task : tasks) {
+                task.get();
+            }
+        } catch(InterruptedException ex) {
+            for(FutureTask<Void> task : tasks) {
+                task.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted waiting for rows.");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Band band;
+        private final int y1;
+        private final int y2;
+        private final int bandRows;
+
+        Split(Band band, int y1, int y2, int bandRows) {
+            this.band = band;
+            this.y1 = y1;
+            this.y2 = y2;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if(y2 - y1 <= bandRows) {
+                band.rows(y1, y2);
+            } else {
+                int mid = y1 + (y2 - y1) / 2;
+                invokeAll(new Split(band, y1, mid, bandRows),
+                        new Split(band, mid, y2, bandRows));
+            }
+        }
+    }
+}
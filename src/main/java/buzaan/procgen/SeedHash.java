@@ -0,0 +1,49 @@
+package buzaan.procgen;
+
+/**
+ * Stateless random values derived from a seed.
+ * Rather than sharing a Random, generators hash the seed together with
+ * whatever identifies the value being drawn (a tile, a lattice point, an
+ * octave). Nothing is shared between threads and the result doesn't depend
+ * on the order values are drawn in, so parallel generation gives the same
+ * map as serial generation.
+ * @author buzaan
+ */
+final class SeedHash {
+    private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+    private static final long Y_MULT = 0xc2b2ae3d27d4eb4fL;
+
+    private SeedHash() {
+    }
+
+    /**
+     * SplitMix64's finaliser.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return 64 random bits for point (x, y).
+     */
+    static long hash(long seed, int x, int y) {
+        return mix(seed ^ mix(x * GOLDEN + y * Y_MULT));
+    }
+
+    /**
+     * @return an independent seed for the given stream of values, such as
+     * an octave or a subtree.
+     */
+    static long derive(long seed, long stream) {
+        return mix(seed + (stream + 1) * GOLDEN);
+    }
+
+    /**
+     * Maps a hash onto [0, bound).
+     */
+    static int nextInt(long hash, int bound) {
+        return (int)(((hash >>> 32) * bound) >>> 32);
+    }
+}
@@ -0,0 +1,32 @@
+package buzaan.procgen;
+
+/**
+ * The smoothstep weights used by cubic interpolation, computed once for each
+ * offset into a lattice cell rather than once per tile.
+ * @author buzaan
+ */
+final class SmoothstepTable {
+    /**
+     * rise[i] = s(i / spacing), the weight of the lattice point after.
+     */
+    final double[] rise;
+    /**
+     * fall[i] = s(1 - i / spacing), the weight of the lattice point before.
+     */
+    final double[] fall;
+
+    SmoothstepTable(int spacing) {
+        rise = new double[spacing];
+        fall = new double[spacing];
+        for(int i = 0; i < spacing; i++) {
+            double p = (double)i / spacing;
+            rise[i] = s(p);
+            fall[i] = s(1.0 - p);
+        }
+    }
+
+    static double s(double x) {
+        // pcgbook mentions this function is a common choice
+        return 3 * x * x - 2 * x * x * x;
+    }
+}